@@ -5,10 +5,8 @@ import java.util.Map;
 
 import org.bukkit.Particle;
 import org.bukkit.Sound;
-import org.bukkit.block.Block;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
-import org.bukkit.entity.Entity;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
@@ -19,7 +17,9 @@ import org.bukkit.event.player.PlayerInteractEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.util.BoundingBox;
 
+import fr.skytasul.guardianbeam.LaserCollisions;
 import fr.skytasul.guardianbeam.Laser.GuardianLaser;
 
 public class LaserDemo extends JavaPlugin implements Listener{
@@ -66,15 +66,15 @@ public class LaserDemo extends JavaPlugin implements Listener{
 		p.getWorld().playSound(p.getLocation(), Sound.ENTITY_GENERIC_EXPLODE, 2, 1);
 		run.loading = 0;
 
-		for (Block blc : p.getLineOfSight(null, LaserRunnable.RANGE / 2)){
-			for (Entity en : p.getWorld().getNearbyEntities(blc.getLocation(), 1, 1, 1)){
-				if (en instanceof Player) continue;
-				if (en instanceof LivingEntity){
-					((LivingEntity) en).damage(20, p);
-					en.getWorld().spawnParticle(Particle.EXPLOSION_LARGE, en.getLocation(), 4, 1, 1, 1, 0.1);
-				}
+		// only the entities around the beam need to be tested against it
+		BoundingBox beamBox = BoundingBox.of(run.laser.getStart(), run.laser.getEnd());
+		LaserCollisions.getEntitiesHit(p.getWorld().getNearbyEntities(beamBox)).forEach((en, hitLasers) -> {
+			if (en instanceof Player || !hitLasers.contains(run.laser)) return;
+			if (en instanceof LivingEntity){
+				((LivingEntity) en).damage(20, p);
+				en.getWorld().spawnParticle(Particle.EXPLOSION_LARGE, en.getLocation(), 4, 1, 1, 1, 0.1);
 			}
-		}
+		});
 		p.getWorld().spawnParticle(Particle.SMOKE_LARGE, run.laser.getEnd(), 5);
 		try {
 			run.laser.callColorChange();
@@ -0,0 +1,44 @@
+package fr.skytasul.guardianbeam;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Runs laser tasks with the Bukkit scheduler, where the main thread owns every location.
+ */
+final class BukkitLaserScheduler implements LaserScheduler {
+
+	@Override
+	public @NotNull Task runTimer(@NotNull Plugin plugin, @Nullable Location location, @NotNull Runnable task,
+			long delay, long period, boolean async) {
+		BukkitTask bukkitTask = async
+				? Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, task, delay, period)
+				: Bukkit.getScheduler().runTaskTimer(plugin, task, delay, period);
+		return new Task() {
+			@Override
+			public void cancel() {
+				bukkitTask.cancel();
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return bukkitTask.isCancelled();
+			}
+		};
+	}
+
+	@Override
+	public void run(@NotNull Plugin plugin, @Nullable Location location, @NotNull Runnable task) {
+		Bukkit.getScheduler().runTask(plugin, task);
+	}
+
+	@Override
+	public boolean isOwnedByCurrentThread(@NotNull Location location) {
+		return true;
+	}
+
+}
@@ -0,0 +1,159 @@
+package fr.skytasul.guardianbeam;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs laser tasks with the region, global region and async schedulers of Folia, accessed by reflection as they are not
+ * part of the Bukkit API.
+ */
+final class FoliaLaserScheduler implements LaserScheduler {
+
+	private static final String SCHEDULER_PACKAGE = "io.papermc.paper.threadedregions.scheduler.";
+
+	private final Object regionScheduler;
+	private final Object globalScheduler;
+	private final Object asyncScheduler;
+
+	private final Method regionRunAtFixedRate;
+	private final Method regionExecute;
+	private final Method globalRunAtFixedRate;
+	private final Method globalExecute;
+	private final Method asyncRunAtFixedRate;
+	private final Method entityGetScheduler;
+	private final Method entityRunAtFixedRate;
+	private final Method isOwnedByCurrentRegion;
+
+	private final Method taskCancel;
+	private final Method taskIsCancelled;
+
+	FoliaLaserScheduler() throws ReflectiveOperationException {
+		Server server = Bukkit.getServer();
+		regionScheduler = Server.class.getMethod("getRegionScheduler").invoke(server);
+		globalScheduler = Server.class.getMethod("getGlobalRegionScheduler").invoke(server);
+		asyncScheduler = Server.class.getMethod("getAsyncScheduler").invoke(server);
+
+		Class<?> regionClass = Class.forName(SCHEDULER_PACKAGE + "RegionScheduler");
+		regionRunAtFixedRate = regionClass.getMethod("runAtFixedRate", Plugin.class, Location.class, Consumer.class,
+				long.class, long.class);
+		regionExecute = regionClass.getMethod("execute", Plugin.class, Location.class, Runnable.class);
+
+		Class<?> globalClass = Class.forName(SCHEDULER_PACKAGE + "GlobalRegionScheduler");
+		globalRunAtFixedRate = globalClass.getMethod("runAtFixedRate", Plugin.class, Consumer.class, long.class,
+				long.class);
+		globalExecute = globalClass.getMethod("execute", Plugin.class, Runnable.class);
+
+		Class<?> asyncClass = Class.forName(SCHEDULER_PACKAGE + "AsyncScheduler");
+		asyncRunAtFixedRate = asyncClass.getMethod("runAtFixedRate", Plugin.class, Consumer.class, long.class,
+				long.class, TimeUnit.class);
+
+		entityGetScheduler = Entity.class.getMethod("getScheduler");
+		Class<?> entityClass = Class.forName(SCHEDULER_PACKAGE + "EntityScheduler");
+		entityRunAtFixedRate = entityClass.getMethod("runAtFixedRate", Plugin.class, Consumer.class, Runnable.class,
+				long.class, long.class);
+
+		isOwnedByCurrentRegion = Server.class.getMethod("isOwnedByCurrentRegion", Location.class);
+
+		Class<?> taskClass = Class.forName(SCHEDULER_PACKAGE + "ScheduledTask");
+		taskCancel = taskClass.getMethod("cancel");
+		taskIsCancelled = taskClass.getMethod("isCancelled");
+	}
+
+	static boolean isSupported() {
+		try {
+			Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+			return true;
+		}catch (ClassNotFoundException ex) {
+			return false;
+		}
+	}
+
+	@Override
+	public @NotNull Task runTimer(@NotNull Plugin plugin, @Nullable Location location, @NotNull Runnable task,
+			long delay, long period, boolean async) {
+		Consumer<Object> consumer = __ -> task.run();
+		// the region schedulers do not accept tasks without delay
+		long initialDelay = Math.max(1, delay);
+		Object scheduledTask;
+		if (location != null)
+			scheduledTask = invoke(regionRunAtFixedRate, regionScheduler, plugin, location, consumer, initialDelay,
+					period);
+		else if (async)
+			scheduledTask = invoke(asyncRunAtFixedRate, asyncScheduler, plugin, consumer, initialDelay * 50,
+					period * 50, TimeUnit.MILLISECONDS);
+		else
+			scheduledTask = invoke(globalRunAtFixedRate, globalScheduler, plugin, consumer, initialDelay, period);
+		return wrap(scheduledTask);
+	}
+
+	@Override
+	public @NotNull Task runEntityTimer(@NotNull Plugin plugin, @NotNull Entity entity, @NotNull Runnable task,
+			@NotNull Runnable retired, long delay, long period) {
+		Consumer<Object> consumer = __ -> task.run();
+		Object scheduledTask = invoke(entityRunAtFixedRate, invoke(entityGetScheduler, entity), plugin, consumer,
+				retired, Math.max(1, delay), period);
+		if (scheduledTask == null) {
+			// the entity has already been removed
+			retired.run();
+			return new Task() {
+				@Override
+				public void cancel() {}
+
+				@Override
+				public boolean isCancelled() {
+					return true;
+				}
+			};
+		}
+		return wrap(scheduledTask);
+	}
+
+	private Task wrap(Object scheduledTask) {
+		return new Task() {
+			@Override
+			public void cancel() {
+				invoke(taskCancel, scheduledTask);
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return (boolean) invoke(taskIsCancelled, scheduledTask);
+			}
+		};
+	}
+
+	@Override
+	public void run(@NotNull Plugin plugin, @Nullable Location location, @NotNull Runnable task) {
+		if (location == null)
+			invoke(globalExecute, globalScheduler, plugin, task);
+		else
+			invoke(regionExecute, regionScheduler, plugin, location, task);
+	}
+
+	@Override
+	public boolean isOwnedByCurrentThread(@NotNull Location location) {
+		return (boolean) invoke(isOwnedByCurrentRegion, Bukkit.getServer(), location);
+	}
+
+	@Override
+	public boolean isRegionThreaded() {
+		return true;
+	}
+
+	private static Object invoke(Method method, Object instance, Object... args) {
+		try {
+			return method.invoke(instance, args);
+		}catch (ReflectiveOperationException ex) {
+			throw new IllegalStateException("Cannot call " + method.getName() + " on the Folia schedulers", ex);
+		}
+	}
+
+}
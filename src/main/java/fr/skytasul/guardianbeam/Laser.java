@@ -1,5 +1,6 @@
 package fr.skytasul.guardianbeam;
 
+import com.google.common.collect.ImmutableList;
 import fr.skytasul.reflection.MappedReflectionAccessor;
 import fr.skytasul.reflection.ReflectionAccessor;
 import fr.skytasul.reflection.ReflectionAccessor.ClassAccessor;
@@ -7,24 +8,37 @@ import fr.skytasul.reflection.TransparentReflectionAccessor;
 import fr.skytasul.reflection.Version;
 import fr.skytasul.reflection.mappings.files.MappingFileReader;
 import fr.skytasul.reflection.mappings.files.ProguardMapping;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.MessageToByteEncoder;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
-import org.bukkit.scheduler.BukkitRunnable;
-import org.bukkit.scheduler.BukkitTask;
 import org.bukkit.util.Vector;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
@@ -41,23 +55,66 @@ import java.util.logging.Logger;
  */
 public abstract class Laser {
 
+	/**
+	 * Players already seeing a laser only lose it once this many blocks farther than its visibility distance, so that
+	 * players standing at the limit do not see it spawn and vanish repeatedly.
+	 */
+	protected static final int VISIBILITY_HYSTERESIS = 2;
+
+	/**
+	 * Ticks between two runs of the task of a laser. The end of the duration is handled by the {@link LaserTimingWheel},
+	 * hence the task only runs when the visibility may have to be updated. Except on region-threaded servers, the tasks
+	 * of all lasers are run by the {@link LaserVisibilityLoop}.
+	 */
+	private static final long VISIBILITY_PERIOD = 20L;
+
 	protected final int distanceSquared;
+	protected final int exitDistanceSquared;
+	protected final int distance;
 	protected final int duration;
 	protected boolean durationInTicks = false;
 	protected Location start;
 	protected Location end;
 
 	protected Plugin plugin;
-	protected BukkitRunnable main;
+	protected LaserScheduler.Task main;
 
-	protected BukkitTask startMove;
-	protected BukkitTask endMove;
+	protected LaserScheduler.Task startMove;
+	protected LaserScheduler.Task endMove;
 
 	protected Set<Player> show = ConcurrentHashMap.newKeySet();
-	private Set<Player> seen = new HashSet<>();
+	// weak so that players who left are not retained by long-lived lasers
+	private Set<Player> seen = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+	private final Set<Player> pendingSpawns = ConcurrentHashMap.newKeySet();
 
 	private List<Runnable> executeEnd = new ArrayList<>(1);
 
+	private volatile Predicate<Player> viewerFilter;
+	private final Set<UUID> includedViewers = ConcurrentHashMap.newKeySet();
+	private final Set<UUID> excludedViewers = ConcurrentHashMap.newKeySet();
+	private final Map<Player, Boolean> viewerFilterCache = new ConcurrentHashMap<>();
+
+	/** Ticks left before the end of the duration while the laser is not in the {@link LaserTimingWheel}, -1 if infinite */
+	private int remainingTicks;
+	private int runs;
+	private volatile boolean dormant;
+	private volatile boolean startMoved;
+
+	private static volatile LaserScheduler scheduler;
+	private static volatile int predictionTicks = 0;
+
+	private static volatile Executor packetExecutor;
+	/** Pool created by the library when no executor has been set, shut down when it is replaced */
+	private static ExecutorService defaultPacketExecutor;
+	private final Queue<Runnable> packetTasks = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean packetTasksScheduled = new AtomicBoolean();
+	private volatile Thread packetThread;
+	private final AtomicBoolean chunksUpdateQueued = new AtomicBoolean();
+
+	private final AtomicReference<Location> offeredStart = new AtomicReference<>();
+	private final AtomicReference<Location> offeredEnd = new AtomicReference<>();
+	private final AtomicBoolean offersQueued = new AtomicBoolean();
+
 	protected Laser(Location start, Location end, int duration, int distance) {
 		Packets.ensureInitialized();
 
@@ -65,7 +122,10 @@ public abstract class Laser {
 		this.start = start.clone();
 		this.end = end.clone();
 		this.duration = duration;
+		this.distance = distance < 0 ? -1 : distance;
 		distanceSquared = distance < 0 ? -1 : distance * distance;
+		exitDistanceSquared = distance < 0 ? -1 : (distance + VISIBILITY_HYSTERESIS) * (distance + VISIBILITY_HYSTERESIS);
+		LaserEvents.laserCreated(this);
 	}
 
 	/**
@@ -87,60 +147,295 @@ public abstract class Laser {
 		return this;
 	}
 
+	/**
+	 * Sets a filter deciding which players can see this laser, in addition to the visibility distance.
+	 * <p>
+	 * The filter is tested at most once per player and its result is cached until {@link #invalidateViewer(Player)} or
+	 * {@link #invalidateViewers()} is called. It is tested from the laser task, which runs asynchronously.
+	 * <p>
+	 * Players passed to {@link #includeViewer(Player)} and {@link #excludeViewer(Player)} bypass this filter.
+	 * @param filter predicate returning <code>true</code> for players who can see the laser, <code>null</code> to show
+	 *        the laser to everybody
+	 * @return this {@link Laser} instance
+	 */
+	public Laser setViewerFilter(@Nullable Predicate<Player> filter) {
+		viewerFilter = filter;
+		viewerFilterCache.clear();
+		return this;
+	}
+
+	/**
+	 * Gets the filter set with {@link #setViewerFilter(Predicate)}.
+	 * @return current viewer filter, <code>null</code> if none
+	 */
+	public @Nullable Predicate<Player> getViewerFilter() {
+		return viewerFilter;
+	}
+
+	/**
+	 * Makes the laser visible to a player whatever the result of the viewer filter, as long as the player is close
+	 * enough.
+	 * @param player player who can see the laser
+	 * @return this {@link Laser} instance
+	 */
+	public Laser includeViewer(@NotNull Player player) {
+		excludedViewers.remove(player.getUniqueId());
+		includedViewers.add(player.getUniqueId());
+		return this;
+	}
+
+	/**
+	 * Hides the laser from a player whatever the result of the viewer filter. The laser is destroyed for this player
+	 * on the next visibility update.
+	 * @param player player who cannot see the laser
+	 * @return this {@link Laser} instance
+	 */
+	public Laser excludeViewer(@NotNull Player player) {
+		includedViewers.remove(player.getUniqueId());
+		excludedViewers.add(player.getUniqueId());
+		return this;
+	}
+
+	/**
+	 * Removes a player from the players passed to {@link #includeViewer(Player)} and {@link #excludeViewer(Player)},
+	 * so that the viewer filter applies to them again.
+	 * @param player player to reset
+	 * @return this {@link Laser} instance
+	 */
+	public Laser resetViewer(@NotNull Player player) {
+		includedViewers.remove(player.getUniqueId());
+		excludedViewers.remove(player.getUniqueId());
+		return this;
+	}
+
+	/**
+	 * Forgets the cached result of the viewer filter for a player. It will be tested again on the next visibility
+	 * update.
+	 * @param player player whose state has changed
+	 */
+	public void invalidateViewer(@NotNull Player player) {
+		viewerFilterCache.remove(player);
+	}
+
+	/**
+	 * Forgets the cached results of the viewer filter for all players.
+	 */
+	public void invalidateViewers() {
+		viewerFilterCache.clear();
+	}
+
+	/**
+	 * Checks the include and exclude sets and the viewer filter for a player, regardless of the distance.
+	 * @param player player to check
+	 * @return <code>true</code> if the player is allowed to see the laser
+	 */
+	protected boolean canSee(Player player) {
+		UUID uuid = player.getUniqueId();
+		if (excludedViewers.contains(uuid))
+			return false;
+		if (includedViewers.contains(uuid))
+			return true;
+		Predicate<Player> filter = viewerFilter;
+		if (filter == null)
+			return true;
+		return viewerFilterCache.computeIfAbsent(player, filter::test);
+	}
+
 	/**
 	 * Starts this laser.
 	 * <p>
 	 * It will make the laser visible for nearby players and start the countdown to the final duration.
 	 * <p>
 	 * Once finished, it will destroy the laser and execute all runnables passed with {@link Laser#executeEnd}.
+	 * <p>
+	 * Lasers with a finite visibility distance go dormant while the chunks of both their start and end locations are
+	 * unloaded: they hold no task and no viewer, and their countdown is paused until one of those chunks is loaded
+	 * again.
 	 * @param plugin plugin used to start the task
 	 */
 	public void start(Plugin plugin) {
-		if (main != null) throw new IllegalStateException("Task already started");
+		if (isStarted()) throw new IllegalStateException("Task already started");
 		this.plugin = plugin;
-		main = new BukkitRunnable() {
-			int time = 0;
+		remainingTicks = duration < 0 ? -1 : durationInTicks ? duration : duration * 20;
+		if (distanceSquared == -1 || LaserChunkTracker.getInstance(plugin).track(this)) {
+			startTask();
+		} else {
+			dormant = true;
+		}
+		LaserEvents.laserStarted(this);
+	}
 
-			@Override
-			public void run() {
-				try {
-					if (time == duration) {
-						cancel();
-						return;
-					}
-					if (!durationInTicks || time % 20 == 0) {
-						for (Player p : start.getWorld().getPlayers()) {
-							if (isCloseEnough(p)) {
-								if (show.add(p)) {
-									sendStartPackets(p, !seen.add(p));
-								}
-							}else if (show.remove(p)) {
-								sendDestroyPackets(p);
-							}
-						}
-					}
-					time++;
-				}catch (ReflectiveOperationException e) {
-					e.printStackTrace();
+	private void startTask() {
+		LaserSnapshot.add(plugin, this);
+		LaserCollisions.add(this);
+		startMoved = false;
+		main = getScheduler().isRegionThreaded()
+				? getScheduler().runTimer(plugin, start, this::tick, 0L, VISIBILITY_PERIOD, true)
+				: LaserVisibilityLoop.schedule(plugin, this::tick, VISIBILITY_PERIOD);
+		LaserJoinBundles.update(this);
+		if (remainingTicks != -1)
+			LaserTimingWheel.schedule(plugin, this, remainingTicks);
+	}
+
+	private void tick() {
+		try {
+			if (startMoved) {
+				startMoved = false;
+				if (!getScheduler().isOwnedByCurrentThread(start)) {
+					// the start went to another region: the task must run on the thread owning it
+					migrateTask();
+					return;
 				}
 			}
+			if (runs++ % LaserThrottle.getLevel().getVisibilityIntervalFactor() == 0) {
+				updateVisibility(LaserSnapshot.current());
+				sendDeferredPackets();
+			}
+		}catch (ReflectiveOperationException e) {
+			e.printStackTrace();
+		}
+	}
 
-			@Override
-			public synchronized void cancel() throws IllegalStateException {
-				super.cancel();
-				main = null;
-				try {
-					for (Player p : show) {
+	private synchronized void migrateTask() {
+		if (main == null) return;
+		main.cancel();
+		main = getScheduler().runTimer(plugin, start, this::tick, 1L, VISIBILITY_PERIOD, true);
+	}
+
+	private void cancelTask() {
+		if (cancelTask(null))
+			executeEnd.forEach(Runnable::run);
+	}
+
+	/**
+	 * Cancels the task of this laser and hides it from its viewers.
+	 * @param removedEntities if not <code>null</code>, the ids of the entities each viewer must remove are added to
+	 *        this map instead of being sent
+	 * @return <code>true</code> if the laser is stopped, and not put to sleep: the caller must then run the
+	 *         {@link #executeEnd(Runnable)} runnables
+	 */
+	private synchronized boolean cancelTask(@Nullable Map<Player, List<int[]>> removedEntities) {
+		if (main == null) return false;
+		main.cancel();
+		main = null;
+		int remaining = LaserTimingWheel.cancel(this);
+		if (dormant && remainingTicks != -1)
+			remainingTicks = Math.max(remaining, 0); // already taken out of the wheel if it is expiring right now
+		LaserSnapshot.remove(this);
+		LaserCollisions.remove(this);
+		LaserJoinBundles.remove(this);
+		pendingSpawns.clear();
+		int[] entityIds = removedEntities == null ? null : getEntityIds();
+		try {
+			for (Player p : show) {
+				if (entityIds == null)
+					sendDestroyPackets(p);
+				else
+					removedEntities.computeIfAbsent(p, __ -> new ArrayList<>()).add(entityIds);
+			}
+		}catch (ReflectiveOperationException e) {
+			e.printStackTrace();
+		}
+		show.clear();
+		releaseViewerResources();
+		if (dormant)
+			return false;
+		LaserChunkTracker.untrack(this);
+		LaserEvents.laserStopped(this);
+		return true;
+	}
+
+	/**
+	 * Stops lasers which reached the end of their duration, all at once.
+	 * <p>
+	 * Each viewer receives the removal of the entities of all the lasers it saw in one packet, then the
+	 * {@link #executeEnd(Runnable)} runnables of all lasers are run.
+	 * @param lasers lasers to stop
+	 */
+	static void expire(List<Laser> lasers) {
+		Map<Player, List<int[]>> removedEntities = new HashMap<>();
+		List<Laser> stopped = new ArrayList<>(lasers.size());
+		for (Laser laser : lasers) {
+			if (laser.cancelTask(removedEntities))
+				stopped.add(laser);
+		}
+		for (Map.Entry<Player, List<int[]>> entry : removedEntities.entrySet()) {
+			int[] entityIds = entry.getValue().stream().flatMapToInt(Arrays::stream).toArray();
+			try {
+				Packets.sendPackets(entry.getKey(), Packets.createPacketsRemoveEntities(entityIds));
+			}catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		}
+		for (Laser laser : stopped) {
+			laser.executeEnd.forEach(Runnable::run);
+		}
+	}
+
+	private void updateVisibility(LaserSnapshot snapshot) throws ReflectiveOperationException {
+		LaserEvents.VisibilityPass event = new LaserEvents.VisibilityPass();
+		event.begin();
+		int spawns = 0, destroys = 0;
+
+		World world = start.getWorld();
+		LaserSnapshot.WorldRange players = snapshot.getPlayers(world);
+		if (players != null) {
+			for (int i = players.from(); i < players.to(); i++) {
+				Player p = (Player) snapshot.entities[i];
+				double playerDistanceSquared = distanceSquared == -1 ? 0
+						: getDistanceSquared(snapshot, p, snapshot.x[i], snapshot.y[i], snapshot.z[i]);
+				int prediction = predictionTicks;
+				if (prediction > 0 && playerDistanceSquared > 0) {
+					// players heading to the laser see it, and keep it, as if they were already where they go
+					playerDistanceSquared = Math.min(playerDistanceSquared, getDistanceSquared(snapshot, p,
+							snapshot.x[i] + snapshot.vx[i] * prediction,
+							snapshot.y[i] + snapshot.vy[i] * prediction,
+							snapshot.z[i] + snapshot.vz[i] * prediction));
+				}
+				// the viewer filter may be costly: it is only applied to players in range
+				if (show.contains(p)) {
+					if ((distanceSquared != -1 && playerDistanceSquared > exitDistanceSquared) || !canSee(p)) {
+						show.remove(p);
 						sendDestroyPackets(p);
+						destroys++;
 					}
-					show.clear();
-					executeEnd.forEach(Runnable::run);
-				}catch (ReflectiveOperationException e) {
-					e.printStackTrace();
+				}else if ((distanceSquared == -1 || playerDistanceSquared <= distanceSquared) && canSee(p)) {
+					if (LaserSpawnQueue.isUnlimited()) {
+						show.add(p);
+						sendStartPackets(p, !seen.add(p));
+						spawns++;
+					}else if (pendingSpawns.add(p)) {
+						LaserSpawnQueue.enqueue(plugin, p, this, playerDistanceSquared);
+						spawns++;
+					}
+				}else {
+					pendingSpawns.remove(p);
 				}
 			}
-		};
-		main.runTaskTimerAsynchronously(plugin, 0L, durationInTicks ? 1L : 20L);
+		}
+		if (!show.isEmpty() || !pendingSpawns.isEmpty()) {
+			// players which left the world or the server: their client already forgot the entities
+			Predicate<Player> gone = p -> {
+				int index = snapshot.indexOf(p);
+				return index == -1 || snapshot.worlds[index] != world;
+			};
+			show.removeIf(gone);
+			pendingSpawns.removeIf(gone);
+		}
+		if (show.isEmpty() && pendingSpawns.isEmpty())
+			releaseViewerResources();
+		if (viewerFilterCache.size() > snapshot.entities.length) {
+			// drops the results of players who left the server
+			viewerFilterCache.keySet().removeIf(p -> snapshot.indexOf(p) == -1);
+		}
+
+		if (event.shouldCommit()) {
+			event.fill(this);
+			event.playersScanned = players == null ? 0 : players.to() - players.from();
+			event.spawns = spawns;
+			event.destroys = destroys;
+			event.commit();
+		}
 	}
 
 	/**
@@ -149,8 +444,17 @@ public abstract class Laser {
 	 * This will destroy the laser for every player and start execute all runnables passed with {@link Laser#executeEnd}
 	 */
 	public void stop() {
-		if (main == null) throw new IllegalStateException("Task not started");
-		main.cancel();
+		if (!isStarted()) throw new IllegalStateException("Task not started");
+		synchronized (this) {
+			if (dormant) {
+				dormant = false;
+				LaserChunkTracker.untrack(this);
+				LaserEvents.laserStopped(this);
+				executeEnd.forEach(Runnable::run);
+				return;
+			}
+		}
+		cancelTask();
 	}
 
 	/**
@@ -159,7 +463,110 @@ public abstract class Laser {
 	 * 			(i.e. {@link #start} has been called and the duration is not over)
 	 */
 	public boolean isStarted() {
-		return main != null;
+		return main != null || dormant;
+	}
+
+	/**
+	 * Gets whether this laser is dormant because the chunks it lies in are unloaded.
+	 * @return <code>true</code> if the laser is started but currently holds no task and no viewer
+	 */
+	public boolean isDormant() {
+		return dormant;
+	}
+
+	/**
+	 * Puts the laser to sleep: its task is cancelled and it is hidden from all viewers, but it stays started.
+	 */
+	synchronized void sleep() {
+		if (main == null) return;
+		dormant = true;
+		cancelTask();
+	}
+
+	/**
+	 * Wakes up a dormant laser and resumes its countdown where it stopped.
+	 */
+	synchronized void wake() {
+		if (!dormant) return;
+		dormant = false;
+		startTask();
+	}
+
+	/**
+	 * Must be called by implementations once the start or end location has changed, to keep the chunk index, the
+	 * {@link LaserCollisions} index and the {@link LaserJoinBundles} up to date, and to move the laser task if the
+	 * start changed of region.
+	 * <p>
+	 * When called from the {@link #getPacketExecutor() packet executor}, the update is made on the thread owning the
+	 * start location instead, as it reads the loaded chunks and schedules tasks. Several moves made meanwhile are then
+	 * accounted for by a single update. The cached join packets of its region are still dropped right away, so that
+	 * players arriving meanwhile do not receive the laser at its previous location.
+	 */
+	protected void updateChunks() {
+		if (packetThread != Thread.currentThread()) {
+			applyChunksUpdate();
+			return;
+		}
+		LaserJoinBundles.invalidate(this);
+		if (chunksUpdateQueued.compareAndSet(false, true)) {
+			getScheduler().run(plugin, start, () -> {
+				chunksUpdateQueued.set(false);
+				applyChunksUpdate();
+			});
+		}
+	}
+
+	private void applyChunksUpdate() {
+		startMoved = true;
+		LaserChunkTracker.update(this);
+		LaserCollisions.invalidate();
+		LaserJoinBundles.update(this);
+	}
+
+	/**
+	 * Adds the entities this laser is attached to, whose positions must be part of the {@link LaserSnapshot}.
+	 * @param entities collection to add the entities to
+	 */
+	void collectAttachedEntities(Collection<Entity> entities) {}
+
+	/**
+	 * Gets whether the start of this laser is attached to an entity. Moving it then reads the entity, hence it is not
+	 * done on the {@link #getPacketExecutor() packet executor}.
+	 */
+	boolean isStartAttached() {
+		return false;
+	}
+
+	/**
+	 * Gets whether the start or end location of this laser follows an entity, and hence changes without
+	 * {@link #updateChunks()} being called.
+	 */
+	boolean isFollowingEntity() {
+		return false;
+	}
+
+	/**
+	 * Gets the duration passed in the constructor.
+	 * @return duration of the laser, in seconds or in ticks (see {@link #isDurationInTicks()}), -1 if infinite
+	 */
+	public int getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Gets whether the duration is counted in ticks rather than seconds.
+	 * @return <code>true</code> if {@link #durationInTicks()} has been called
+	 */
+	public boolean isDurationInTicks() {
+		return durationInTicks;
+	}
+
+	/**
+	 * Gets the distance where the laser is visible.
+	 * @return visibility distance in blocks, -1 if infinite
+	 */
+	public int getDistance() {
+		return distance;
 	}
 
 	/**
@@ -205,7 +612,7 @@ public abstract class Laser {
 	 * @param callback {@link Runnable} to execute at the end of the move (nullable)
 	 */
 	public void moveStart(Location location, int ticks, Runnable callback) {
-		startMove = moveInternal(location, ticks, startMove, getStart(), this::moveStart, callback);
+		startMove = moveInternal(location, ticks, startMove, getStart(), true, callback);
 	}
 
 	/**
@@ -215,57 +622,381 @@ public abstract class Laser {
 	 * @param callback {@link Runnable} to execute at the end of the move (nullable)
 	 */
 	public void moveEnd(Location location, int ticks, Runnable callback) {
-		endMove = moveInternal(location, ticks, endMove, getEnd(), this::moveEnd, callback);
+		endMove = moveInternal(location, ticks, endMove, getEnd(), false, callback);
+	}
+
+	/**
+	 * Offers a new start location for the laser, from any thread and without blocking.
+	 * <p>
+	 * Offered locations are applied with {@link #moveStart(Location)} on the next tick, on the
+	 * {@link #getPacketExecutor() packet executor}. If several locations are offered during a single tick, only the
+	 * latest one is applied.
+	 * @param location New start location
+	 */
+	public void offerStart(@NotNull Location location) {
+		offer(offeredStart, location);
+	}
+
+	/**
+	 * Offers a new end location for the laser, from any thread and without blocking.
+	 * <p>
+	 * Offered locations are applied with {@link #moveEnd(Location)} on the next tick, on the
+	 * {@link #getPacketExecutor() packet executor}. If several locations are offered during a single tick, only the
+	 * latest one is applied.
+	 * @param location New end location
+	 */
+	public void offerEnd(@NotNull Location location) {
+		offer(offeredEnd, location);
+	}
+
+	private void offer(AtomicReference<Location> slot, Location location) {
+		if (plugin == null)
+			throw new IllegalStateException("The laser must have been started a least once");
+		slot.set(location.clone());
+		if (offersQueued.compareAndSet(false, true))
+			LaserPositionStream.enqueue(plugin, this);
+	}
+
+	void applyOfferedPositions() {
+		// reset before reading, so that offers made from now on queue the laser again
+		offersQueued.set(false);
+		Location newStart = offeredStart.getAndSet(null);
+		Location newEnd = offeredEnd.getAndSet(null);
+		try {
+			if (newStart != null && isStartAttached()) {
+				// detaching the start reads the entity: it is done on the thread owning it
+				getScheduler().run(plugin, start, () -> {
+					try {
+						moveStart(newStart);
+					}catch (ReflectiveOperationException e) {
+						e.printStackTrace();
+					}
+				});
+			}else if (newStart != null)
+				moveStart(newStart);
+			if (newEnd != null)
+				moveEnd(newEnd);
+		}catch (ReflectiveOperationException e) {
+			e.printStackTrace();
+		}
 	}
 
-	private BukkitTask moveInternal(Location location, int ticks, BukkitTask oldTask, Location from,
-			ReflectiveConsumer<Location> moveConsumer, Runnable callback) {
+	private LaserScheduler.Task moveInternal(Location location, int ticks, LaserScheduler.Task oldTask, Location from,
+			boolean moveStart, Runnable callback) {
 		if (ticks <= 0)
 			throw new IllegalArgumentException("Ticks must be a positive value");
 		if (plugin == null)
 			throw new IllegalStateException("The laser must have been started a least once");
 		if (oldTask != null && !oldTask.isCancelled())
 			oldTask.cancel();
-		return new BukkitRunnable() {
-			double xPerTick = (location.getX() - from.getX()) / ticks;
-			double yPerTick = (location.getY() - from.getY()) / ticks;
-			double zPerTick = (location.getZ() - from.getZ()) / ticks;
-			Location loc = from.clone();
-			int elapsed = 0;
+		MoveTask move = new MoveTask(location, ticks, from, moveStart, callback);
+		move.task = getScheduler().runTimer(plugin, from, move, 0L, 1L, false);
+		return move.task;
+	}
 
-			@Override
-			public void run() {
-				try {
-					loc.add(xPerTick, yPerTick, zPerTick);
-					moveConsumer.accept(loc);
-				}catch (ReflectiveOperationException e) {
-					e.printStackTrace();
-					cancel();
-					return;
+	private class MoveTask implements Runnable {
+		private final Location destination;
+		private final int ticks;
+		private final boolean moveStart;
+		private final ReflectiveConsumer<Location> moveConsumer;
+		private final Runnable callback;
+		private final double xPerTick, yPerTick, zPerTick;
+		private final Location loc;
+		private int elapsed = 0;
+		private LaserScheduler.Task task;
+
+		MoveTask(Location destination, int ticks, Location from, boolean moveStart, Runnable callback) {
+			this.destination = destination;
+			this.ticks = ticks;
+			this.moveStart = moveStart;
+			this.moveConsumer = moveStart ? Laser.this::moveStart : Laser.this::moveEnd;
+			this.callback = callback;
+			xPerTick = (destination.getX() - from.getX()) / ticks;
+			yPerTick = (destination.getY() - from.getY()) / ticks;
+			zPerTick = (destination.getZ() - from.getZ()) / ticks;
+			loc = from.clone();
+		}
+
+		@Override
+		public void run() {
+			loc.add(xPerTick, yPerTick, zPerTick);
+			elapsed++;
+			// under load, intermediate steps are skipped but the last one is always sent
+			if (elapsed % LaserThrottle.getLevel().getAnimationStep() == 0 || elapsed == ticks) {
+				Location step = loc.clone(); // the location is read from another thread
+				Runnable move = () -> {
+					try {
+						moveConsumer.accept(step);
+					}catch (ReflectiveOperationException e) {
+						e.printStackTrace();
+						task.cancel();
+					}
+				};
+				if (moveStart && isStartAttached())
+					move.run(); // detaching the start reads the entity, this task runs on the thread owning it
+				else
+					submitPacketTask(move);
+			}
+
+			if (elapsed == ticks) {
+				task.cancel();
+				if (callback != null) {
+					// ran once all moves have been sent, back on the thread owning the destination
+					submitPacketTask(() -> getScheduler().run(plugin, destination, callback));
 				}
+			}
+		}
+	}
 
-				if (++elapsed == ticks) {
-					cancel();
-					if (callback != null) callback.run();
+	/**
+	 * Runs a task on the {@link #getPacketExecutor() packet executor}.
+	 * <p>
+	 * Tasks submitted for the same laser are executed one after the other, in submission order.
+	 * @param task task to run
+	 */
+	protected void submitPacketTask(Runnable task) {
+		packetTasks.add(task);
+		if (packetTasksScheduled.compareAndSet(false, true))
+			executePacketTasks();
+	}
+
+	private void executePacketTasks() {
+		try {
+			getPacketExecutor().execute(this::runPacketTasks);
+		}catch (RejectedExecutionException ex) {
+			// the executor has been shut down in the meantime: the packets are sent from the calling thread
+			runPacketTasks();
+		}
+	}
+
+	private void runPacketTasks() {
+		packetThread = Thread.currentThread();
+		Runnable task;
+		while ((task = packetTasks.poll()) != null) {
+			try {
+				task.run();
+			}catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		packetThread = null;
+		packetTasksScheduled.set(false);
+		// a task may have been added between the last poll and the flag reset
+		if (!packetTasks.isEmpty() && packetTasksScheduled.compareAndSet(false, true))
+			executePacketTasks();
+	}
+
+	/**
+	 * Sets the executor on which smooth moves (see {@link #moveStart(Location, int, Runnable)}) create and send their
+	 * packets.
+	 * <p>
+	 * By default, a small pool of daemon threads is created the first time it is needed, so that packet creation does
+	 * not happen on the main thread. Passing <code>Runnable::run</code> makes moves run directly on the main thread, as
+	 * in previous versions.
+	 * <p>
+	 * If the default pool has been created, it is shut down. Executors passed to this method are never shut down by the
+	 * library.
+	 * @param executor executor to use for packet work
+	 */
+	public static synchronized void setPacketExecutor(@NotNull Executor executor) {
+		packetExecutor = Objects.requireNonNull(executor);
+		shutdownDefaultPacketExecutor();
+	}
+
+	/**
+	 * Gets the executor on which lasers create and send the packets of their smooth moves.
+	 * @return current packet executor
+	 * @see #setPacketExecutor(Executor)
+	 */
+	public static @NotNull Executor getPacketExecutor() {
+		Executor current = packetExecutor;
+		if (current == null) {
+			synchronized (Laser.class) {
+				if (packetExecutor == null) {
+					defaultPacketExecutor = createDefaultPacketExecutor();
+					packetExecutor = defaultPacketExecutor;
 				}
+				current = packetExecutor;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Shuts down the pool of threads created by default to send the packets of smooth moves. It must be called in the
+	 * <code>onDisable</code> method of plugins using smooth moves, otherwise its threads keep the plugin loaded after a
+	 * reload.
+	 * <p>
+	 * Packets already queued are still sent. If lasers are moved smoothly afterwards, a new pool is created.
+	 */
+	public static synchronized void shutdownPacketExecutor() {
+		if (packetExecutor == defaultPacketExecutor)
+			packetExecutor = null;
+		shutdownDefaultPacketExecutor();
+	}
+
+	private static void shutdownDefaultPacketExecutor() {
+		if (defaultPacketExecutor != null) {
+			defaultPacketExecutor.shutdown();
+			defaultPacketExecutor = null;
+		}
+	}
+
+	/**
+	 * Sets the scheduler running the tasks of all lasers. Tasks already running are not moved.
+	 * @param scheduler scheduler to use
+	 * @see LaserScheduler#detect()
+	 */
+	public static void setScheduler(@NotNull LaserScheduler scheduler) {
+		Laser.scheduler = Objects.requireNonNull(scheduler);
+	}
+
+	/**
+	 * Gets the scheduler running the tasks of all lasers. By default, it is the one matching the server, see
+	 * {@link LaserScheduler#detect()}.
+	 * @return current scheduler
+	 */
+	public static @NotNull LaserScheduler getScheduler() {
+		LaserScheduler current = scheduler;
+		if (current == null) {
+			synchronized (Laser.class) {
+				if (scheduler == null)
+					scheduler = LaserScheduler.detect();
+				current = scheduler;
 			}
-		}.runTaskTimer(plugin, 0L, 1L);
+		}
+		return current;
+	}
+
+	/**
+	 * Sets how many lasers can be spawned for a single player during one tick.
+	 * <p>
+	 * When more lasers become visible at once, for instance after a teleportation, the remaining ones are spawned
+	 * during the next ticks, nearest first. A value of 0 or less spawns all lasers right away.
+	 * <p>
+	 * Static lasers whose start lies in a same area of 4 by 4 chunks are spawned together from cached packets, which
+	 * counts as one laser.
+	 * @param spawnsPerTick maximum amount of lasers spawned per player and per tick, 8 by default
+	 */
+	public static void setSpawnBudget(int spawnsPerTick) {
+		LaserSpawnQueue.setBudget(spawnsPerTick);
+	}
+
+	/**
+	 * Gets how many lasers can be spawned for a single player during one tick.
+	 * @return maximum amount of lasers spawned per player and per tick, 0 or less if unlimited
+	 * @see #setSpawnBudget(int)
+	 */
+	public static int getSpawnBudget() {
+		return LaserSpawnQueue.getBudget();
+	}
+
+	/**
+	 * Makes packets sent to several viewers at once, such as moves, be encoded only once and the same bytes written to
+	 * the connection of every viewer. Disabled by default.
+	 * <p>
+	 * The bytes are written to the channels right after their packet encoder, hence they do not go through the
+	 * <code>send</code> method of the connections: plugins listening to sent packets do not see them, and servers
+	 * queueing packets of connections which are not ready yet do not queue them. Viewers whose connection cannot
+	 * receive the shared bytes, for instance because it is not playing or has an unknown handler in its pipeline,
+	 * receive the packets through their connection as usual.
+	 * @param enabled <code>true</code> to encode broadcast packets once
+	 */
+	public static void setEncodeOnce(boolean enabled) {
+		Packets.encodeOnce = enabled;
+	}
+
+	/**
+	 * Gets whether packets sent to several viewers are encoded only once.
+	 * @return <code>true</code> if it is enabled and supported by the server
+	 * @see #setEncodeOnce(boolean)
+	 */
+	public static boolean isEncodeOnce() {
+		return Packets.encodeOnce && Packets.encodeOnceAvailable;
+	}
+
+	/**
+	 * Makes lasers spawn ahead for moving players: a player is considered close enough as soon as their position in
+	 * the given amount of ticks, extrapolated from their current velocity, is.
+	 * <p>
+	 * This lets fast players (flying with elytra, riding minecarts...) receive lasers before reaching them, spread over
+	 * several ticks by the {@link #setSpawnBudget(int) spawn budget}. As visibility is updated every second by default,
+	 * a value of 20 ticks or more is advised.
+	 * @param ticks amount of ticks to look ahead, 0 to disable the prediction (default)
+	 */
+	public static void setPredictionTicks(int ticks) {
+		if (ticks < 0) throw new IllegalArgumentException("Prediction ticks cannot be negative");
+		predictionTicks = ticks;
+	}
+
+	/**
+	 * Gets how many ticks ahead player positions are extrapolated to spawn lasers.
+	 * @return amount of ticks, 0 if the prediction is disabled
+	 * @see #setPredictionTicks(int)
+	 */
+	public static int getPredictionTicks() {
+		return predictionTicks;
+	}
+
+	private static ExecutorService createDefaultPacketExecutor() {
+		AtomicInteger threadID = new AtomicInteger();
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		return Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "GuardianBeam Packets #" + threadID.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
 
 	protected void moveFakeEntity(Location location, Object fakeEntity) throws ReflectiveOperationException {
 		if (fakeEntity != null) Packets.moveFakeEntity(fakeEntity, location);
-		if (main == null) return;
+		if (main == null || show.isEmpty()) return;
 
-		Object packet = Packets.createPacketMoveEntity(fakeEntity);
-		for (Player p : show) {
-			Packets.sendPackets(p, packet);
-		}
+		Packets.broadcastPackets(show, Packets.createPacketMoveEntity(fakeEntity));
 	}
 
 	protected abstract void sendStartPackets(Player p, boolean hasSeen) throws ReflectiveOperationException;
 
 	protected abstract void sendDestroyPackets(Player p) throws ReflectiveOperationException;
 
+	/**
+	 * Gets the ids of the fake entities removed by {@link #sendDestroyPackets(Player)}, so that the removal of several
+	 * lasers can be sent in a single packet.
+	 * @return ids of the fake entities, or <code>null</code> if the laser must be destroyed with
+	 *         {@link #sendDestroyPackets(Player)}
+	 */
+	int @Nullable [] getEntityIds() {
+		return null;
+	}
+
+	/**
+	 * Called once nobody sees the laser anymore. Implementations drop the fake entities and packets they only need to
+	 * show the laser, and create them again on the next {@link #sendStartPackets(Player, boolean)}.
+	 */
+	protected void releaseViewerResources() {}
+
+	/**
+	 * Called after each visibility update. Implementations send the packets they have held back because of the
+	 * {@link LaserThrottle}.
+	 * @throws ReflectiveOperationException if a reflection exception occurred while sending packets
+	 */
+	protected void sendDeferredPackets() throws ReflectiveOperationException {}
+
+	/**
+	 * Estimates the heap memory retained by this laser: its own fields, locations and viewer sets, plus the fake
+	 * entities and packets while they are held.
+	 * <p>
+	 * This is an approximation for a 64-bit JVM with compressed references, useful to compare lasers or to watch the
+	 * effect of idle lasers releasing their resources.
+	 * @return estimated retained size, in bytes
+	 */
+	public long getRetainedBytesEstimate() {
+		return MemoryEstimates.LASER
+				+ 2 * MemoryEstimates.LOCATION
+				+ MemoryEstimates.SET_ENTRY * (show.size() + seen.size() + pendingSpawns.size())
+				+ LaserJoinBundles.getRetainedBytesEstimate(this);
+	}
+
 	protected boolean isCloseEnough(Player player) {
 		if (distanceSquared == -1) return true;
 		Location location = player.getLocation();
@@ -273,6 +1004,106 @@ public abstract class Laser {
 				getEnd().distanceSquared(location) <= distanceSquared;
 	}
 
+	/**
+	 * Gets the squared distance between a player and the nearest end of the laser, reading all positions from a
+	 * snapshot.
+	 * @return squared distance, compared against {@link #distanceSquared} to know if the player can see the laser
+	 */
+	double getDistanceSquared(LaserSnapshot snapshot, Player player, double x, double y, double z) {
+		return Math.min(
+				distanceSquared(start.getX(), start.getY(), start.getZ(), x, y, z),
+				distanceSquared(end.getX(), end.getY(), end.getZ(), x, y, z));
+	}
+
+	/**
+	 * Gets whether a player is waiting in the {@link LaserSpawnQueue} for this laser to spawn.
+	 */
+	boolean isSpawnPending(Player player) {
+		return pendingSpawns.contains(player);
+	}
+
+	/**
+	 * Spawns the laser for a player which has waited in the {@link LaserSpawnQueue}, if it is still waiting.
+	 */
+	void spawnQueued(Player player) {
+		if (!claimQueuedSpawn(player)) return;
+		try {
+			sendStartPackets(player, !seen.add(player));
+		}catch (ReflectiveOperationException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Makes a player which has waited in the {@link LaserSpawnQueue} a viewer of this laser, without sending anything.
+	 * @return <code>true</code> if the player became a viewer, in which case the caller must send the spawn packets
+	 */
+	boolean claimQueuedSpawn(Player player) {
+		return pendingSpawns.remove(player) && main != null && show.add(player);
+	}
+
+	/**
+	 * Remembers that a player has seen this laser.
+	 * @return <code>true</code> if it is the first time, in which case {@link #collectFirstSightPackets(List)} must be
+	 * sent along the spawn packets
+	 */
+	boolean markSeen(Player player) {
+		return seen.add(player);
+	}
+
+	/**
+	 * Adds the packets spawning this laser which are the same for all players, to be cached by
+	 * {@link LaserJoinBundles}.
+	 * @param packets list to add the packets to
+	 * @return <code>false</code> if this laser cannot be spawned from cached packets
+	 * @throws ReflectiveOperationException if a reflection exception occurred while creating the packets
+	 */
+	boolean collectSpawnPackets(List<Object> packets) throws ReflectiveOperationException {
+		return false;
+	}
+
+	/**
+	 * Adds the packets spawning this laser to be cached by {@link LaserJoinBundles}, only if some players see it or
+	 * wait for it, so that the fake entities of idle lasers are not created again for the cache.
+	 * @param packets list to add the packets to
+	 * @return <code>false</code> if this laser is idle or cannot be spawned from cached packets
+	 * @throws ReflectiveOperationException if a reflection exception occurred while creating the packets
+	 */
+	synchronized boolean collectCachedSpawnPackets(List<Object> packets) throws ReflectiveOperationException {
+		if (show.isEmpty() && pendingSpawns.isEmpty())
+			return false;
+		return collectSpawnPackets(packets);
+	}
+
+	/**
+	 * Adds the packets sent along the spawn packets the first time a player sees this laser.
+	 * @param packets list to add the packets to
+	 * @throws ReflectiveOperationException if a reflection exception occurred while creating the packets
+	 */
+	void collectFirstSightPackets(List<Object> packets) throws ReflectiveOperationException {}
+
+	/**
+	 * Rough shallow sizes used by {@link Laser#getRetainedBytesEstimate()}.
+	 */
+	static final class MemoryEstimates {
+		/** Laser fields, collections and visibility task */
+		static final long LASER = 512;
+		static final long LOCATION = 56;
+		static final long SET_ENTRY = 48;
+		/** Fake NMS entity with its synched data */
+		static final long ENTITY = 1536;
+		static final long PACKET = 64;
+		/** Array slot holding a compressed reference */
+		static final long REFERENCE = 4;
+
+		private MemoryEstimates() {}
+	}
+
+	static double distanceSquared(double x1, double y1, double z1, double x2, double y2, double z2) {
+		double dx = x1 - x2, dy = y1 - y2, dz = z1 - z2;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
 	public static class GuardianLaser extends Laser {
 		private static AtomicInteger teamID = new AtomicInteger(ThreadLocalRandom.current().nextInt(0, Integer.MAX_VALUE));
 
@@ -292,11 +1123,16 @@ public abstract class Laser {
 
 		private int targetID;
 		private UUID targetUUID;
+		private boolean colorChangeDeferred;
 
+		private final int teamNumber = teamID.getAndIncrement();
 		private Object teamCreatePacket;
 		private Object[] destroyPackets;
 
 		protected LivingEntity endEntity;
+		protected Entity startEntity;
+		/** NMS entities riding the start entity when it was attached, as the passengers packet must list them */
+		private List<Object> startEntityPassengers;
 
 		private Location correctStart;
 		private Location correctEnd;
@@ -316,8 +1152,6 @@ public abstract class Laser {
 		public GuardianLaser(Location start, Location end, int duration, int distance) throws ReflectiveOperationException {
 			super(start, end, duration, distance);
 
-			initSquid();
-			initLaser();
 			setTargetEntity(squidUUID, squidID);
 		}
 
@@ -336,22 +1170,52 @@ public abstract class Laser {
 		public GuardianLaser(Location start, LivingEntity endEntity, int duration, int distance) throws ReflectiveOperationException {
 			super(start, endEntity.getLocation(), duration, distance);
 
-			initLaser();
 			setTargetEntity(endEntity.getUniqueId(), endEntity.getEntityId());
 		}
 
+		/**
+		 * Creates the fake entities and the packets needed to show the laser, if they have been released or never
+		 * created.
+		 */
 		private void initLaser() throws ReflectiveOperationException {
+			if (guardian != null)
+				return;
 			guardian = Packets.createGuardian(getCorrectStart(), guardianUUID, guardianID);
 			guardianData = Packets.getEntityData(guardian);
+			metadataPacketGuardian = Packets.createPacketMetadataGuardian(guardianID, guardianData, targetID);
+			if (targetUUID == squidUUID)
+				initSquid();
 
-			teamCreatePacket = Packets.createPacketTeamCreate("noclip" + teamID.getAndIncrement(), squidUUID, guardianUUID);
+			teamCreatePacket = Packets.createPacketTeamCreate("noclip" + teamNumber, squidUUID, guardianUUID);
 			destroyPackets = Packets.createPacketsRemoveEntities(squidID, guardianID);
 		}
 
+		@Override
+		protected synchronized void releaseViewerResources() {
+			if (guardian == null || !show.isEmpty())
+				return;
+			squid = squidData = createSquidPacket = metadataPacketSquid = null;
+			guardian = guardianData = createGuardianPacket = metadataPacketGuardian = null;
+			teamCreatePacket = null;
+			destroyPackets = null;
+			correctStart = correctEnd = null;
+			LaserJoinBundles.invalidate(this);
+		}
+
+		@Override
+		public long getRetainedBytesEstimate() {
+			long size = super.getRetainedBytesEstimate();
+			if (correctStart != null) size += MemoryEstimates.LOCATION;
+			if (correctEnd != null) size += MemoryEstimates.LOCATION;
+			if (guardian != null) size += MemoryEstimates.ENTITY + 4 * MemoryEstimates.PACKET;
+			if (squid != null) size += MemoryEstimates.ENTITY + 2 * MemoryEstimates.PACKET;
+			return size;
+		}
+
 		private void initSquid() throws ReflectiveOperationException {
 			squid = Packets.createSquid(getCorrectEnd(), squidUUID, squidID);
 			squidData = Packets.getEntityData(squid);
-			metadataPacketSquid = Packets.createPacketMetadata(squidID, squidData);
+			metadataPacketSquid = Packets.createPacketMetadataSquid(squidID, squidData);
 		}
 
 		private Object getGuardianSpawnPacket() throws ReflectiveOperationException {
@@ -380,26 +1244,83 @@ public abstract class Laser {
 		 * @param entity living entity the laser will follow
 		 * @throws ReflectiveOperationException if a reflection operation fails
 		 */
-		public void attachEndEntity(LivingEntity entity) throws ReflectiveOperationException {
+		public synchronized void attachEndEntity(LivingEntity entity) throws ReflectiveOperationException {
 			if (entity.getWorld() != start.getWorld()) throw new IllegalArgumentException("Attached entity is not in the same world as the laser.");
 			this.endEntity = entity;
 			setTargetEntity(entity.getUniqueId(), entity.getEntityId());
+			updateChunks();
 		}
 
 		public Entity getEndEntity() {
 			return endEntity;
 		}
 
+		/**
+		 * Makes the laser start from an entity (moving start location).
+		 * <p>
+		 * This is done client-side by making the fake guardian ride the existing entity.
+		 * Hence, the server does not send anything while the entity moves.
+		 * The laser then starts from the top of the entity, where passengers are placed.
+		 * <p>
+		 * As the client only knows one passengers list per vehicle, this must be called again if
+		 * entities start or stop riding the attached entity. The passengers are read when this is called, hence it must
+		 * be called on the thread owning the entity.
+		 * <p>
+		 * Calling {@link #moveStart(Location)} detaches the laser from the entity.
+		 *
+		 * @param entity entity the laser start will follow
+		 * @throws ReflectiveOperationException if a reflection operation fails
+		 * @throws UnsupportedOperationException if the server does not support passengers packets
+		 */
+		public synchronized void attachStartEntity(Entity entity) throws ReflectiveOperationException {
+			if (entity.getWorld() != start.getWorld()) throw new IllegalArgumentException("Attached entity is not in the same world as the laser.");
+			if (Packets.packetPassengers == null)
+				throw new UnsupportedOperationException("Passengers packets are not available on this server.");
+			this.startEntityPassengers = Packets.getPassengerHandles(entity);
+			this.startEntity = entity;
+			if (!show.isEmpty())
+				Packets.broadcastPackets(show,
+						Packets.createPacketSetPassengers(entity.getEntityId(), startEntityPassengers, guardian));
+			updateChunks();
+		}
+
+		public Entity getStartEntity() {
+			return startEntity;
+		}
+
+		@Override
+		boolean isFollowingEntity() {
+			return startEntity != null || endEntity != null;
+		}
+
+		@Override
+		boolean isStartAttached() {
+			return startEntity != null;
+		}
+
+		@Override
+		void collectAttachedEntities(Collection<Entity> entities) {
+			Entity attached = startEntity;
+			if (attached != null) entities.add(attached);
+			attached = endEntity;
+			if (attached != null) entities.add(attached);
+		}
+
 		private void setTargetEntity(UUID uuid, int id) throws ReflectiveOperationException {
 			targetUUID = uuid;
 			targetID = id;
+			LaserJoinBundles.invalidate(this);
+			if (guardian == null)
+				return; // the metadata will be created with the right target once needed
 
-			Packets.setGuardianTarget(guardianData, targetID);
-			metadataPacketGuardian = Packets.createPacketMetadata(guardianID, guardianData);
+			metadataPacketGuardian = Packets.createPacketMetadataGuardian(guardianID, guardianData, targetID);
 
-			for (Player p : show) {
-				Packets.sendPackets(p, metadataPacketGuardian);
-			}
+			Packets.broadcastPackets(show, metadataPacketGuardian);
+		}
+
+		@Override
+		public Location getStart() {
+			return startEntity == null ? start.clone() : startEntity.getLocation();
 		}
 
 		@Override
@@ -433,56 +1354,104 @@ public abstract class Laser {
 
 		@Override
 		protected boolean isCloseEnough(Player player) {
-			return player == endEntity || super.isCloseEnough(player);
+			return player == endEntity || player == startEntity || super.isCloseEnough(player);
 		}
 
 		@Override
-		protected void sendStartPackets(Player p, boolean hasSeen) throws ReflectiveOperationException {
-			if (squid == null) {
-				Packets.sendPackets(p,
-						getGuardianSpawnPacket(),
-						metadataPacketGuardian);
-			}else {
-				Packets.sendPackets(p,
-						getGuardianSpawnPacket(),
-						getSquidSpawnPacket(),
-						metadataPacketGuardian,
-						metadataPacketSquid);
-			}
+		double getDistanceSquared(LaserSnapshot snapshot, Player player, double x, double y, double z) {
+			if (player == endEntity || player == startEntity) return 0;
+			if (startEntity == null && endEntity == null) return super.getDistanceSquared(snapshot, player, x, y, z);
+
+			// until the next capture includes an attached entity, the static start or end location is used instead, as
+			// entities must not be read outside of their owning thread
+			int startIndex = snapshot.indexOf(startEntity);
+			int endIndex = snapshot.indexOf(endEntity);
+			return Math.min(
+					startIndex == -1
+					? distanceSquared(start.getX(), start.getY(), start.getZ(), x, y, z)
+					: distanceSquared(snapshot.x[startIndex], snapshot.y[startIndex], snapshot.z[startIndex], x, y, z),
+					endIndex == -1
+					? distanceSquared(end.getX(), end.getY(), end.getZ(), x, y, z)
+					: distanceSquared(snapshot.x[endIndex], snapshot.y[endIndex], snapshot.z[endIndex], x, y, z));
+		}
+
+		@Override
+		protected synchronized void sendStartPackets(Player p, boolean hasSeen) throws ReflectiveOperationException {
+			List<Object> packets = new ArrayList<>(6);
+			collectSpawnPackets(packets);
+			if (!hasSeen) collectFirstSightPackets(packets);
+			if (startEntity != null)
+				packets.add(Packets.createPacketSetPassengers(startEntity.getEntityId(), startEntityPassengers, guardian));
+			Packets.sendPackets(p, packets.toArray());
+		}
+
+		@Override
+		synchronized boolean collectSpawnPackets(List<Object> packets) throws ReflectiveOperationException {
+			initLaser();
+			packets.add(getGuardianSpawnPacket());
+			if (squid != null) packets.add(getSquidSpawnPacket());
+			packets.add(metadataPacketGuardian);
+			if (squid != null) packets.add(metadataPacketSquid);
+			return true;
+		}
 
-			if (!hasSeen) Packets.sendPackets(p, teamCreatePacket);
+		@Override
+		synchronized void collectFirstSightPackets(List<Object> packets) throws ReflectiveOperationException {
+			initLaser();
+			packets.add(teamCreatePacket);
 		}
 
 		@Override
-		protected void sendDestroyPackets(Player p) throws ReflectiveOperationException {
+		protected synchronized void sendDestroyPackets(Player p) throws ReflectiveOperationException {
+			if (destroyPackets == null)
+				destroyPackets = Packets.createPacketsRemoveEntities(squidID, guardianID);
 			Packets.sendPackets(p, destroyPackets);
 		}
 
 		@Override
-		public void moveStart(Location location) throws ReflectiveOperationException {
+		int[] getEntityIds() {
+			return new int[] {squidID, guardianID};
+		}
+
+		@Override
+		public synchronized void moveStart(Location location) throws ReflectiveOperationException {
+			if (startEntity != null) {
+				// restores the real passengers of the entity, without the guardian
+				Entity oldStartEntity = startEntity;
+				List<Object> oldPassengers = startEntityPassengers;
+				startEntity = null;
+				startEntityPassengers = null;
+				if (!show.isEmpty())
+					Packets.broadcastPackets(show,
+							Packets.createPacketSetPassengers(oldStartEntity.getEntityId(), oldPassengers));
+			}
 			this.start = location.clone();
 			correctStart = null;
 
 			createGuardianPacket = null; // will force re-generation of spawn packet
-			moveFakeEntity(getCorrectStart(), guardian);
+			correctEnd = null;
+			if (guardian != null)
+				moveFakeEntity(getCorrectStart(), guardian);
 
 			if (squid != null) {
-				correctEnd = null;
 				createSquidPacket = null;
 				moveFakeEntity(getCorrectEnd(), squid);
 			}
+			updateChunks();
 		}
 
 		@Override
-		public void moveEnd(Location location) throws ReflectiveOperationException {
+		public synchronized void moveEnd(Location location) throws ReflectiveOperationException {
 			this.end = location.clone();
 			createSquidPacket = null; // will force re-generation of spawn packet
 			correctEnd = null;
 
 			if (squid == null) {
-				initSquid();
-				for (Player p : show) {
-					Packets.sendPackets(p, getSquidSpawnPacket(), metadataPacketSquid);
+				// when the guardian is not there either, the squid will be created once needed
+				if (guardian != null) {
+					initSquid();
+					if (!show.isEmpty())
+						Packets.broadcastPackets(show, getSquidSpawnPacket(), metadataPacketSquid);
 				}
 			}else {
 				moveFakeEntity(getCorrectEnd(), squid);
@@ -491,16 +1460,32 @@ public abstract class Laser {
 				endEntity = null;
 				setTargetEntity(squidUUID, squidID);
 			}
+			updateChunks();
 		}
 
 		/**
 		 * Asks viewers' clients to change the color of this laser
+		 * <p>
+		 * While the {@link LaserThrottle} defers metadata, the change is sent on the next visibility update.
 		 * @throws ReflectiveOperationException
 		 */
-		public void callColorChange() throws ReflectiveOperationException {
-			for (Player p : show) {
-				Packets.sendPackets(p, metadataPacketGuardian);
+		public synchronized void callColorChange() throws ReflectiveOperationException {
+			LaserJoinBundles.invalidate(this);
+			if (LaserThrottle.getLevel().isDeferringMetadata()) {
+				colorChangeDeferred = true;
+				return;
 			}
+			if (metadataPacketGuardian != null)
+				Packets.broadcastPackets(show, metadataPacketGuardian);
+		}
+
+		@Override
+		protected synchronized void sendDeferredPackets() throws ReflectiveOperationException {
+			if (!colorChangeDeferred)
+				return;
+			colorChangeDeferred = false;
+			if (metadataPacketGuardian != null)
+				Packets.broadcastPackets(show, metadataPacketGuardian);
 		}
 
 	}
@@ -511,9 +1496,12 @@ public abstract class Laser {
 		private Object metadataPacketCrystal;
 		private Object[] destroyPackets;
 
-		private final Object crystal;
+		private Object crystal;
+		private final UUID crystalUUID = UUID.randomUUID();
 		private final int crystalID = Packets.generateEID();
-		private final Object crystalWatcher;
+		private Object crystalWatcher;
+
+		protected Entity endEntity;
 
 		/**
 		 * Creates a new Ender Crystal Laser instance
@@ -529,13 +1517,34 @@ public abstract class Laser {
 		public CrystalLaser(Location start, Location end, int duration, int distance) throws ReflectiveOperationException {
 			super(start, new Location(end.getWorld(), end.getBlockX(), end.getBlockY(), end.getBlockZ()), duration,
 					distance);
+		}
 
-			crystal = Packets.createCrystal(start, UUID.randomUUID(), crystalID);
+		/**
+		 * Creates the fake crystal and the packets needed to show the laser, if they have been released or never
+		 * created.
+		 */
+		private void initCrystal() throws ReflectiveOperationException {
+			if (crystal != null)
+				return;
+			crystal = Packets.createCrystal(start, crystalUUID, crystalID);
 			crystalWatcher = Packets.getEntityData(crystal);
-			Packets.setCrystalTarget(crystalWatcher, end);
-			metadataPacketCrystal = Packets.createPacketMetadata(crystalID, crystalWatcher);
+			metadataPacketCrystal = Packets.createPacketMetadataCrystal(crystalID, crystalWatcher, end);
+		}
 
-			destroyPackets = Packets.createPacketsRemoveEntities(crystalID);
+		@Override
+		protected synchronized void releaseViewerResources() {
+			if (crystal == null || !show.isEmpty())
+				return;
+			crystal = crystalWatcher = createCrystalPacket = metadataPacketCrystal = null;
+			destroyPackets = null;
+			LaserJoinBundles.invalidate(this);
+		}
+
+		@Override
+		public long getRetainedBytesEstimate() {
+			long size = super.getRetainedBytesEstimate();
+			if (crystal != null) size += MemoryEstimates.ENTITY + 3 * MemoryEstimates.PACKET;
+			return size;
 		}
 
 		private Object getCrystalSpawnPacket() throws ReflectiveOperationException {
@@ -550,36 +1559,197 @@ public abstract class Laser {
 		}
 
 		@Override
-		protected void sendStartPackets(Player p, boolean hasSeen) throws ReflectiveOperationException {
-			Packets.sendPackets(p, getCrystalSpawnPacket());
-			Packets.sendPackets(p, metadataPacketCrystal);
+		public void start(Plugin plugin) {
+			super.start(plugin);
+			if (endEntity != null)
+				EndEntityTracker.add(this);
+		}
+
+		/**
+		 * Makes the laser follow an entity (moving end location).
+		 * <p>
+		 * The positions of all entities attached to crystal lasers are sampled once per tick,
+		 * and the beam target is only sent again to viewers when the entity enters another block.
+		 * <p>
+		 * Calling {@link #moveEnd(Location)} detaches the laser from the entity.
+		 *
+		 * @param entity entity the laser will follow
+		 */
+		public void attachEndEntity(Entity entity) {
+			if (entity.getWorld() != start.getWorld()) throw new IllegalArgumentException("Attached entity is not in the same world as the laser.");
+			this.endEntity = entity;
+			if (isStarted())
+				EndEntityTracker.add(this);
+		}
+
+		public Entity getEndEntity() {
+			return endEntity;
 		}
 
 		@Override
-		protected void sendDestroyPackets(Player p) throws ReflectiveOperationException {
+		void collectAttachedEntities(Collection<Entity> entities) {
+			Entity attached = endEntity;
+			if (attached != null) entities.add(attached);
+		}
+
+		@Override
+		protected synchronized void sendStartPackets(Player p, boolean hasSeen) throws ReflectiveOperationException {
+			initCrystal();
+			Packets.sendPackets(p, getCrystalSpawnPacket(), metadataPacketCrystal);
+		}
+
+		@Override
+		synchronized boolean collectSpawnPackets(List<Object> packets) throws ReflectiveOperationException {
+			initCrystal();
+			packets.add(getCrystalSpawnPacket());
+			packets.add(metadataPacketCrystal);
+			return true;
+		}
+
+		@Override
+		protected synchronized void sendDestroyPackets(Player p) throws ReflectiveOperationException {
+			if (destroyPackets == null)
+				destroyPackets = Packets.createPacketsRemoveEntities(crystalID);
 			Packets.sendPackets(p, destroyPackets);
 		}
 
 		@Override
-		public void moveStart(Location location) throws ReflectiveOperationException {
+		int[] getEntityIds() {
+			return new int[] {crystalID};
+		}
+
+		@Override
+		public synchronized void moveStart(Location location) throws ReflectiveOperationException {
 			this.start = location.clone();
 			createCrystalPacket = null; // will force re-generation of spawn packet
-			moveFakeEntity(start, crystal);
+			if (crystal != null)
+				moveFakeEntity(start, crystal);
+			updateChunks();
 		}
 
 		@Override
-		public void moveEnd(Location location) throws ReflectiveOperationException {
+		public synchronized void moveEnd(Location location) throws ReflectiveOperationException {
+			if (endEntity != null) {
+				endEntity = null;
+				EndEntityTracker.remove(this);
+			}
+
 			location = new Location(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
 
 			if (end.equals(location))
 				return;
 
-			this.end = location;
-			if (main != null) {
-				Packets.setCrystalTarget(crystalWatcher, location);
-				metadataPacketCrystal = Packets.createPacketMetadata(crystalID, crystalWatcher);
-				for (Player p : show) {
-					Packets.sendPackets(p, metadataPacketCrystal);
+			setBlockTarget(location);
+			if (metadataPacketCrystal != null)
+				Packets.broadcastPackets(show, metadataPacketCrystal);
+		}
+
+		/**
+		 * Moves the end to the position of the attached entity, read in a previous snapshot, unless the laser
+		 * has been detached from this entity meanwhile.
+		 */
+		private synchronized void applyEndTarget(Entity entity, Location target) {
+			if (endEntity != entity || !isStarted() || end.equals(target))
+				return;
+			try {
+				setBlockTarget(target);
+				if (metadataPacketCrystal != null)
+					Packets.broadcastPackets(show, metadataPacketCrystal);
+			}catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+				EndEntityTracker.remove(this);
+			}
+		}
+
+		private synchronized void setBlockTarget(Location blockLocation) throws ReflectiveOperationException {
+			this.end = blockLocation;
+			// without crystal, the metadata will be created with the right target once needed
+			if (crystal != null)
+				metadataPacketCrystal = Packets.createPacketMetadataCrystal(crystalID, crystalWatcher, blockLocation);
+			updateChunks();
+		}
+
+		/**
+		 * Reads the positions of the entities attached to crystal lasers from the {@link LaserSnapshot} once per tick,
+		 * and sends the new targets grouped by viewer.
+		 * <p>
+		 * On region-threaded servers, each new target is applied on the thread owning the start of its laser instead.
+		 */
+		private static class EndEntityTracker {
+			private static final Set<CrystalLaser> lasers = ConcurrentHashMap.newKeySet();
+			private static LaserScheduler.Task task;
+
+			static synchronized void add(CrystalLaser laser) {
+				lasers.add(laser);
+				if (task == null)
+					task = getScheduler().runTimer(laser.plugin, null, EndEntityTracker::tick, 1L, 1L, false);
+			}
+
+			static void remove(CrystalLaser laser) {
+				lasers.remove(laser);
+			}
+
+			private static void tick() {
+				LaserSnapshot snapshot = LaserSnapshot.current();
+				boolean regionThreaded = getScheduler().isRegionThreaded();
+				Map<Player, List<Object>> packets = null;
+				for (Iterator<CrystalLaser> iterator = lasers.iterator(); iterator.hasNext();) {
+					CrystalLaser laser = iterator.next();
+					Entity entity = laser.endEntity;
+					if (entity == null || !laser.isStarted()) {
+						iterator.remove();
+						continue;
+					}
+					if (laser.isDormant())
+						continue;
+
+					int index = snapshot.indexOf(entity);
+					if (index == -1 || snapshot.worlds[index] != laser.end.getWorld())
+						continue;
+					int x = Location.locToBlock(snapshot.x[index]);
+					int y = Location.locToBlock(snapshot.y[index]);
+					int z = Location.locToBlock(snapshot.z[index]);
+					if (x == laser.end.getBlockX() && y == laser.end.getBlockY() && z == laser.end.getBlockZ())
+						continue;
+
+					Location target = new Location(laser.end.getWorld(), x, y, z);
+					if (regionThreaded) {
+						getScheduler().run(laser.plugin, laser.start, () -> laser.applyEndTarget(entity, target));
+						continue;
+					}
+
+					try {
+						laser.setBlockTarget(target);
+					}catch (ReflectiveOperationException e) {
+						e.printStackTrace();
+						iterator.remove();
+						continue;
+					}
+					Object metadataPacket = laser.metadataPacketCrystal;
+					if (metadataPacket == null)
+						continue;
+					for (Player p : laser.show) {
+						if (packets == null)
+							packets = new HashMap<>();
+						packets.computeIfAbsent(p, __ -> new ArrayList<>(2)).add(metadataPacket);
+					}
+				}
+
+				if (packets != null) {
+					for (Map.Entry<Player, List<Object>> entry : packets.entrySet()) {
+						try {
+							Packets.sendPackets(entry.getKey(), entry.getValue().toArray());
+						}catch (ReflectiveOperationException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+
+				synchronized (EndEntityTracker.class) {
+					if (lasers.isEmpty()) {
+						task.cancel();
+						task = null;
+					}
 				}
 			}
 		}
@@ -626,6 +1796,8 @@ public abstract class Laser {
 
 	protected static class Packets {
 		private static AtomicInteger lastIssuedEID = new AtomicInteger(2000000000);
+		/** Clients disconnect when a bundle reaches 4096 packets */
+		private static final int MAX_BUNDLE_SIZE = 4000;
 
 		static int generateEID() {
 			return lastIssuedEID.getAndIncrement();
@@ -665,6 +1837,20 @@ public abstract class Laser {
 		private static Constructor<?> packetRemove;
 		private static Constructor<?> packetTeleport;
 		private static Method packetTeleportOf;
+		private static Constructor<?> packetPassengers;
+		private static Field entityPassengers;
+		private static Object passengersProxy;
+		private static Constructor<?> packetBundle;
+		private static final String ENCODER_HANDLER = "encoder";
+		/** Handlers of the vanilla pipeline which outbound packets go through before the encoder */
+		private static final Set<String> VANILLA_PACKET_HANDLERS = Set.of("packet_handler", "bundler", "unbundler",
+				"inbound_config", "outbound_config", "decoder", "splitter", "decompress", "timeout", "legacy_query");
+		private static Field listenerConnection;
+		private static Field connectionChannel;
+		private static Method connectionListener;
+		private static Method encoderEncode;
+		private static boolean encodeOnceAvailable;
+		private static volatile boolean encodeOnce;
 		private static Constructor<?> packetMetadata;
 		private static ClassAccessor packetTeam;
 
@@ -676,6 +1862,7 @@ public abstract class Laser {
 		private static Method getTeamPlayers;
 
 		private static Method getPlayerHandle;
+		private static Method getEntityHandle;
 		private static Field playerConnection;
 		private static Method sendPacket;
 
@@ -687,6 +1874,8 @@ public abstract class Laser {
 
 		private static Object nmsWorld;
 
+		private static PacketAdapter adapter;
+
 		protected static void ensureInitialized() {
 			if (!hasInitialized)
 				initialize();
@@ -753,6 +1942,7 @@ public abstract class Laser {
 				String errorMsg =
 						"Lasers reflection failed to initialize. The util is disabled. Please ensure your version ("
 								+ Bukkit.getBukkitVersion() + ") is supported.";
+				LaserEvents.reflectionFailure(errorMsg, ex);
 				if (logger == null) {
 					ex.printStackTrace();
 					System.err.println(errorMsg);
@@ -830,6 +2020,23 @@ public abstract class Laser {
 			sendPacket =
 					packetListenerClass.getMethodInstance("send", getNMSClass(reflection, "network.protocol", "Packet"));
 
+			try {
+				var connectionClass = getNMSClass(reflection, "network", "Connection");
+				listenerConnection = packetListenerClass.getFieldInstance("connection");
+				connectionChannel = connectionClass.getFieldInstance("channel");
+				connectionListener = connectionClass.getMethodInstance("getPacketListener");
+				encoderEncode = MessageToByteEncoder.class.getDeclaredMethod("encode", ChannelHandlerContext.class,
+						Object.class, ByteBuf.class);
+				encoderEncode.setAccessible(true);
+				encodeOnceAvailable = true;
+			} catch (ReflectiveOperationException | RuntimeException | LinkageError ex) {
+				// packets broadcast to several viewers are then encoded once per viewer, as any other packet
+				encodeOnceAvailable = false;
+				LaserEvents.reflectionFailure("Cannot load connection channel", ex);
+				if (logger != null)
+					logger.log(Level.FINE, "Cannot load connection channel, packets will be encoded for each viewer", ex);
+			}
+
 			getData = entityClass.getMethodInstance("getEntityData");
 			setLocation = entityClass.getMethodInstance(version.isAfter(1, 21, 5) ? "absSnapTo" : "absMoveTo", double.class,
 					double.class, double.class, float.class, float.class);
@@ -837,6 +2044,32 @@ public abstract class Laser {
 			setUUID = entityClass.getMethodInstance("setUUID", UUID.class);
 			setID = entityClass.getMethodInstance("setId", int.class);
 
+			try {
+				packetPassengers = getNMSClass(reflection, "network.protocol.game", "ClientboundSetPassengersPacket")
+						.getConstructorInstance(entityClass);
+				entityPassengers = entityClass.getFieldInstance("passengers");
+			} catch (ReflectiveOperationException ex) {
+				// only needed to attach the start of guardian lasers to entities: the rest of the util still works
+				packetPassengers = null;
+				entityPassengers = null;
+				LaserEvents.reflectionFailure("Cannot load passengers packet", ex);
+				if (logger != null)
+					logger.log(Level.WARNING, "Cannot load passengers packet, attaching lasers start is unavailable", ex);
+			}
+
+			if (version.isAfter(1, 19, 4)) {
+				try {
+					packetBundle = getNMSClass(reflection, "network.protocol.game", "ClientboundBundlePacket")
+							.getConstructorInstance(Iterable.class);
+				} catch (ReflectiveOperationException ex) {
+					// bundles only make clients handle spawn packets together: lasers are spawned the same without them
+					packetBundle = null;
+					LaserEvents.reflectionFailure("Cannot load bundle packet", ex);
+					if (logger != null)
+						logger.log(Level.FINE, "Cannot load bundle packet, spawn packets will be sent one by one", ex);
+				}
+			}
+
 			var scoreboardClass = getNMSClass(reflection, "world.scores", "Scoreboard");
 			var teamClass = getNMSClass(reflection, "world.scores", "PlayerTeam");
 			var pushClass = getNMSClass(reflection, "world.scores", "Team$CollisionRule");
@@ -850,10 +2083,33 @@ public abstract class Laser {
 
 			if (cpack != null) {
 				getPlayerHandle = Class.forName(cpack + "entity.CraftPlayer").getDeclaredMethod("getHandle");
+				getEntityHandle = Class.forName(cpack + "entity.CraftEntity").getDeclaredMethod("getHandle");
 
 				nmsWorld = Class.forName(cpack + "CraftWorld").getDeclaredMethod("getHandle")
 						.invoke(Bukkit.getWorlds().get(0));
 			}
+
+			adapter = PacketAdapter.forVersion(version);
+		}
+
+		/**
+		 * Groups packets into bundles, which clients handle all during the same tick.
+		 * <p>
+		 * Clients reject too large bundles, hence large lists are split into several bundles.
+		 * @param packets packets to group
+		 * @return bundle packets, or the packets themselves if the server does not support bundles
+		 * @throws ReflectiveOperationException if a reflection exception occurred while creating the bundles
+		 */
+		public static Object[] createBundles(List<Object> packets) throws ReflectiveOperationException {
+			if (packetBundle == null || packets.size() < 2)
+				return packets.toArray();
+			Object[] bundles = new Object[(packets.size() + MAX_BUNDLE_SIZE - 1) / MAX_BUNDLE_SIZE];
+			for (int i = 0; i < bundles.length; i++) {
+				int from = i * MAX_BUNDLE_SIZE;
+				bundles[i] = packetBundle.newInstance(
+						new ArrayList<>(packets.subList(from, Math.min(packets.size(), from + MAX_BUNDLE_SIZE))));
+			}
+			return bundles;
 		}
 
 		public static void sendPackets(Player p, Object... packets) throws ReflectiveOperationException {
@@ -862,8 +2118,171 @@ public abstract class Laser {
 				if (packet == null) continue;
 				sendPacket.invoke(connection, packet);
 			}
+			LaserEvents.packetsSent(packets, 1);
+		}
+
+		/**
+		 * Sends the same packet instances to several players.
+		 * <p>
+		 * Packets are immutable once created, so they are built once and shared between all viewers rather than
+		 * rebuilt per player.
+		 * <p>
+		 * If {@link Laser#setEncodeOnce(boolean) enabled}, they are also encoded only once: the encoding happens on the
+		 * event loop of the first viewer, and the bytes are then written to the channel of each viewer right after its
+		 * packet encoder, so that each connection still compresses and encrypts them on its own. Each viewer whose
+		 * connection cannot take the shared bytes receives the packets through its connection as usual.
+		 * @param players viewers to send the packets to
+		 * @param packets packets to send, <code>null</code> values are skipped
+		 * @throws ReflectiveOperationException if a reflection exception occurred while sending
+		 */
+		public static void broadcastPackets(Iterable<Player> players, Object... packets)
+				throws ReflectiveOperationException {
+			List<Object> connections = new ArrayList<>();
+			for (Player p : players) {
+				connections.add(playerConnection.get(getPlayerHandle.invoke(p)));
+			}
+			if (connections.isEmpty())
+				return;
+
+			if (encodeOnce && encodeOnceAvailable && connections.size() > 1 && canEncode(packets)) {
+				List<EncodeTarget> targets = new ArrayList<>(connections.size());
+				for (Object connection : connections) {
+					ChannelHandlerContext encoder = getEncoderContext(connection);
+					if (encoder == null)
+						sendToConnection(connection, packets);
+					else
+						targets.add(new EncodeTarget(connection, encoder));
+				}
+				if (targets.size() > 1) {
+					// the encoder of the first viewer is only used from its own event loop, as in its pipeline
+					targets.get(0).encoder.executor().execute(() -> writeEncoded(targets, packets));
+				} else {
+					for (EncodeTarget target : targets) {
+						sendToConnection(target.connection, packets);
+					}
+				}
+			} else {
+				for (Object connection : connections) {
+					sendToConnection(connection, packets);
+				}
+			}
+			LaserEvents.packetsSent(packets, connections.size());
+		}
+
+		private static void sendToConnection(Object connection, Object[] packets) throws ReflectiveOperationException {
+			for (Object packet : packets) {
+				if (packet == null) continue;
+				sendPacket.invoke(connection, packet);
+			}
+		}
+
+		/**
+		 * Encodes packets with the encoder of the first target, and writes the bytes to all targets. Targets which
+		 * cannot take them receive the packets through their connection.
+		 * <p>
+		 * Must be called on the event loop of the first target.
+		 */
+		private static void writeEncoded(List<EncodeTarget> targets, Object[] packets) {
+			ChannelHandlerContext first = targets.get(0).encoder;
+			ByteBuf[] encoded = encode(first, packets);
+			try {
+				for (EncodeTarget target : targets) {
+					ChannelHandlerContext encoder = target.encoder;
+					if (encoded == null || encoder.isRemoved() || !encoder.channel().isActive()
+							|| encoder.handler().getClass() != first.handler().getClass()) {
+						sendToConnectionLogging(target.connection, packets);
+						continue;
+					}
+					for (ByteBuf buffer : encoded) {
+						encoder.write(buffer.retainedDuplicate(), encoder.voidPromise());
+					}
+					encoder.flush();
+				}
+			}finally {
+				if (encoded != null) {
+					for (ByteBuf buffer : encoded) {
+						buffer.release();
+					}
+				}
+			}
+		}
+
+		private static void sendToConnectionLogging(Object connection, Object[] packets) {
+			try {
+				sendToConnection(connection, packets);
+			}catch (ReflectiveOperationException | RuntimeException ex) {
+				if (logger != null)
+					logger.log(Level.WARNING, "Cannot send laser packets", ex);
+			}
+		}
+
+		/**
+		 * Bundles are split into several packets by a handler in front of the encoder, hence they cannot be encoded
+		 * directly.
+		 */
+		private static boolean canEncode(Object[] packets) {
+			if (packetBundle == null)
+				return true;
+			for (Object packet : packets) {
+				if (packetBundle.getDeclaringClass().isInstance(packet))
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Gets the context of the packet encoder of a connection, if the connection is playing and the packets written
+		 * to it reach the encoder untouched.
+		 * @return context of the encoder, or <code>null</code> if the connection is in another protocol, for instance
+		 *         during reconfiguration, or if its pipeline is not the vanilla one
+		 */
+		private static @Nullable ChannelHandlerContext getEncoderContext(Object connection)
+				throws ReflectiveOperationException {
+			Object networkConnection = listenerConnection.get(connection);
+			if (connectionListener.invoke(networkConnection) != connection)
+				return null;
+			Channel channel = (Channel) connectionChannel.get(networkConnection);
+			if (channel == null || !channel.isActive())
+				return null;
+			ChannelPipeline pipeline = channel.pipeline();
+			ChannelHandlerContext context = pipeline.context(ENCODER_HANDLER);
+			if (context == null || !(context.handler() instanceof MessageToByteEncoder))
+				return null;
+			// outbound packets go through the handlers placed after the encoder before reaching it
+			List<String> names = pipeline.names();
+			for (int i = names.indexOf(ENCODER_HANDLER) + 1; i < names.size(); i++) {
+				if (!VANILLA_PACKET_HANDLERS.contains(names.get(i)))
+					return null;
+			}
+			return context;
 		}
 
+		/**
+		 * Encodes packets with the encoder of a connection.
+		 * @return buffers holding the encoded packets, or <code>null</code> if the encoder cannot encode them
+		 */
+		private static ByteBuf @Nullable [] encode(ChannelHandlerContext encoder, Object[] packets) {
+			List<ByteBuf> buffers = new ArrayList<>(packets.length);
+			try {
+				for (Object packet : packets) {
+					if (packet == null) continue;
+					ByteBuf buffer = encoder.alloc().buffer();
+					buffers.add(buffer);
+					encoderEncode.invoke(encoder.handler(), encoder, packet, buffer);
+				}
+				return buffers.toArray(ByteBuf[]::new);
+			}catch (ReflectiveOperationException | RuntimeException ex) {
+				buffers.forEach(ByteBuf::release);
+				// only this broadcast falls back: the next one may be encoded by another connection
+				LaserEvents.reflectionFailure("Cannot encode packets", ex);
+				if (logger != null)
+					logger.log(Level.FINE, "Cannot encode packets once for several viewers, they are sent one by one", ex);
+				return null;
+			}
+		}
+
+		private static record EncodeTarget(Object connection, ChannelHandlerContext encoder) {}
+
 		public static Object createSquid(Location location, UUID uuid, int id) throws ReflectiveOperationException {
 			Object entity = squidConstructor.newInstance(squidType, nmsWorld);
 			setEntityIDs(entity, uuid, id);
@@ -899,11 +2318,7 @@ public abstract class Laser {
 		}
 
 		public static Object createPacketEntitySpawnNormal(Object entity) throws ReflectiveOperationException {
-			if (version.isAfter(1, 21, 0)) {
-				Object entityPos = entityBlockPosition.get(entity);
-				return packetSpawnNormal.newInstance(entity, 0, entityPos);
-			}
-			return packetSpawnNormal.newInstance(entity);
+			return adapter.createPacketEntitySpawnNormal(entity);
 		}
 
 		public static void setGuardianTarget(Object watcher, int targetId) throws ReflectiveOperationException {
@@ -923,17 +2338,37 @@ public abstract class Laser {
 			setEntityData(watcher, dataAccessorCrystalBottom, Boolean.FALSE);
 		}
 
+		/**
+		 * Creates the metadata packet of a squid.
+		 * <p>
+		 * Since 1.19.3, the packed values are the same for every squid and are shared between all packets.
+		 */
+		public static Object createPacketMetadataSquid(int entityId, Object watcher) throws ReflectiveOperationException {
+			return adapter.createPacketMetadataSquid(entityId, watcher);
+		}
+
+		/**
+		 * Creates the metadata packet of a guardian targeting an entity.
+		 * <p>
+		 * Since 1.19.3, only the target value is packed, the other values being shared between all packets.
+		 */
+		public static Object createPacketMetadataGuardian(int entityId, Object watcher, int targetId)
+				throws ReflectiveOperationException {
+			return adapter.createPacketMetadataGuardian(entityId, watcher, targetId);
+		}
+
+		/**
+		 * Creates the metadata packet of an ender crystal targeting a block.
+		 * <p>
+		 * Since 1.19.3, only the target value is packed, the other values being shared between all packets.
+		 */
+		public static Object createPacketMetadataCrystal(int entityId, Object watcher, Location target)
+				throws ReflectiveOperationException {
+			return adapter.createPacketMetadataCrystal(entityId, watcher, target);
+		}
+
 		public static Object[] createPacketsRemoveEntities(int... entitiesId) throws ReflectiveOperationException {
-			Object[] packets;
-			if (version.is(1, 17, 0)) {
-				packets = new Object[entitiesId.length];
-				for (int i = 0; i < entitiesId.length; i++) {
-					packets[i] = packetRemove.newInstance(entitiesId[i]);
-				}
-			}else {
-				packets = new Object[] { packetRemove.newInstance(entitiesId) };
-			}
-			return packets;
+			return adapter.createPacketsRemoveEntities(entitiesId);
 		}
 
 		public static void setEntityIDs(Object entity, UUID uuid, int id) throws ReflectiveOperationException {
@@ -946,10 +2381,69 @@ public abstract class Laser {
 		}
 
 		public static Object createPacketMoveEntity(Object entity) throws ReflectiveOperationException {
-			if (version.isBefore(1, 21, 2))
-				return packetTeleport.newInstance(entity);
-			else
-				return packetTeleportOf.invoke(null, entity);
+			return adapter.createPacketMoveEntity(entity);
+		}
+
+		/**
+		 * Creates a packet which makes the client see some fake entities riding an existing entity.
+		 * <p>
+		 * The current passengers of the vehicle are kept, as the packet replaces the whole passengers list. They are
+		 * read from the Bukkit API, hence this must be called on the thread owning the vehicle.
+		 * @param vehicle real entity to ride
+		 * @param fakePassengers NMS fake entities which will ride the vehicle
+		 * @return the passengers packet
+		 * @throws ReflectiveOperationException if a reflection exception occurred during packet creation
+		 * @see #createPacketSetPassengers(int, List, Object...)
+		 */
+		public static Object createPacketSetPassengers(Entity vehicle, Object... fakePassengers)
+				throws ReflectiveOperationException {
+			return createPacketSetPassengers(vehicle.getEntityId(), getPassengerHandles(vehicle), fakePassengers);
+		}
+
+		/**
+		 * Gets the NMS entities riding an entity. Must be called on the thread owning the entity.
+		 * @param vehicle entity whose passengers are read
+		 * @return NMS passengers, which can be passed to {@link #createPacketSetPassengers(int, List, Object...)}
+		 * @throws ReflectiveOperationException if a reflection exception occurred while getting the NMS entities
+		 */
+		public static List<Object> getPassengerHandles(Entity vehicle) throws ReflectiveOperationException {
+			List<Entity> bukkitPassengers = vehicle.getPassengers();
+			List<Object> passengers = new ArrayList<>(bukkitPassengers.size());
+			for (Entity passenger : bukkitPassengers) {
+				passengers.add(getEntityHandle.invoke(passenger));
+			}
+			return passengers;
+		}
+
+		/**
+		 * Creates a packet which makes the client see some fake entities riding an existing entity, along with its real
+		 * passengers read beforehand. It does not use the Bukkit API, hence it can be called from any thread.
+		 * @param vehicleId ID of the real entity to ride
+		 * @param realPassengers NMS entities riding the vehicle, see {@link #getPassengerHandles(Entity)}
+		 * @param fakePassengers NMS fake entities which will ride the vehicle
+		 * @return the passengers packet
+		 * @throws ReflectiveOperationException if a reflection exception occurred during packet creation
+		 */
+		public static Object createPacketSetPassengers(int vehicleId, List<?> realPassengers, Object... fakePassengers)
+				throws ReflectiveOperationException {
+			if (packetPassengers == null)
+				throw new UnsupportedOperationException("Passengers packets are not available on this server.");
+
+			List<Object> passengers = new ArrayList<>(realPassengers.size() + fakePassengers.length);
+			passengers.addAll(realPassengers);
+			Collections.addAll(passengers, fakePassengers);
+
+			synchronized (Packets.class) {
+				// the packet only reads the ID and passengers of the entity, so we use a
+				// fake entity instead of modifying the passengers of the real one
+				if (passengersProxy == null)
+					passengersProxy = squidConstructor.newInstance(squidType, nmsWorld);
+				setID.invoke(passengersProxy, vehicleId);
+				entityPassengers.set(passengersProxy, ImmutableList.copyOf(passengers));
+				Object packet = packetPassengers.newInstance(passengersProxy);
+				entityPassengers.set(passengersProxy, ImmutableList.of());
+				return packet;
+			}
 		}
 
 		public static Object createPacketTeamCreate(String teamName, UUID... entities) throws ReflectiveOperationException {
@@ -963,21 +2457,12 @@ public abstract class Laser {
 		}
 
 		private static Object createPacketMetadata(int entityId, Object watcher) throws ReflectiveOperationException {
-			if (version.isBefore(1, 19, 3)) {
-				return packetMetadata.newInstance(entityId, watcher, false);
-			} else {
-				return packetMetadata.newInstance(entityId, watcherPack.invoke(watcher));
-			}
+			return adapter.createPacketMetadata(entityId, watcher);
 		}
 
 		private static void setEntityData(Object watcher, Object watcherObject, Object watcherData)
 				throws ReflectiveOperationException {
-			if (version.isAfter(1, 19, 3)) {
-				watcherSet.invoke(watcher, watcherObject, watcherData, true);
-			} else {
-				watcherSet.invoke(watcher, watcherObject, watcherData);
-				watcherDirty.invoke(watcher, watcherObject);
-			}
+			adapter.setEntityData(watcher, watcherObject, watcherData);
 		}
 
 		private static @NotNull ClassAccessor getNMSClass(@NotNull ReflectionAccessor reflection, @NotNull String className)
@@ -989,6 +2474,196 @@ public abstract class Laser {
 				@NotNull String className) throws ClassNotFoundException {
 			return reflection.getClass("net.minecraft." + nmPackage + "." + className);
 		}
+
+		/**
+		 * Creates the packets whose content changed across Minecraft versions.
+		 * <p>
+		 * One adapter is picked by {@link Packets#loadReflection} for the version range of the server, so packets are
+		 * created without comparing versions on every call. Each subclass only overrides what changed starting from its
+		 * version: support for a new version is added by extending the latest adapter.
+		 * <p>
+		 * This base adapter handles 1.17.1 to 1.19.2.
+		 */
+		protected static class PacketAdapter {
+
+			static @NotNull PacketAdapter forVersion(@NotNull Version version) {
+				if (version.is(1, 17, 0))
+					return new PacketAdapter_1_17_0();
+				if (version.isBefore(1, 19, 3))
+					return new PacketAdapter();
+				if (version.isBefore(1, 21, 0))
+					return new PacketAdapter_1_19_3();
+				if (version.isBefore(1, 21, 2))
+					return new PacketAdapter_1_21();
+				return new PacketAdapter_1_21_2();
+			}
+
+			void setEntityData(Object watcher, Object watcherObject, Object watcherData)
+					throws ReflectiveOperationException {
+				watcherSet.invoke(watcher, watcherObject, watcherData);
+				watcherDirty.invoke(watcher, watcherObject);
+			}
+
+			Object createPacketMetadata(int entityId, Object watcher) throws ReflectiveOperationException {
+				return packetMetadata.newInstance(entityId, watcher, false);
+			}
+
+			Object createPacketMetadataSquid(int entityId, Object watcher) throws ReflectiveOperationException {
+				return createPacketMetadata(entityId, watcher);
+			}
+
+			Object createPacketMetadataGuardian(int entityId, Object watcher, int targetId)
+					throws ReflectiveOperationException {
+				setGuardianTarget(watcher, targetId);
+				return createPacketMetadata(entityId, watcher);
+			}
+
+			Object createPacketMetadataCrystal(int entityId, Object watcher, Location target)
+					throws ReflectiveOperationException {
+				setCrystalTarget(watcher, target);
+				return createPacketMetadata(entityId, watcher);
+			}
+
+			Object createPacketEntitySpawnNormal(Object entity) throws ReflectiveOperationException {
+				return packetSpawnNormal.newInstance(entity);
+			}
+
+			Object createPacketMoveEntity(Object entity) throws ReflectiveOperationException {
+				return packetTeleport.newInstance(entity);
+			}
+
+			Object[] createPacketsRemoveEntities(int... entitiesId) throws ReflectiveOperationException {
+				return new Object[] {packetRemove.newInstance(entitiesId)};
+			}
+
+		}
+
+		/**
+		 * 1.17.0 only has a packet to remove a single entity.
+		 */
+		private static class PacketAdapter_1_17_0 extends PacketAdapter {
+
+			@Override
+			Object[] createPacketsRemoveEntities(int... entitiesId) throws ReflectiveOperationException {
+				Object[] packets = new Object[entitiesId.length];
+				for (int i = 0; i < entitiesId.length; i++) {
+					packets[i] = packetRemove.newInstance(entitiesId[i]);
+				}
+				return packets;
+			}
+
+		}
+
+		/**
+		 * Since 1.19.3, metadata packets carry a list of immutable packed values instead of the entity data,
+		 * and entity data values are set with a "force" flag which marks them dirty.
+		 * <p>
+		 * The values which are the same for every laser are packed once and shared between all packets.
+		 */
+		private static class PacketAdapter_1_19_3 extends PacketAdapter {
+
+			@Override
+			void setEntityData(Object watcher, Object watcherObject, Object watcherData)
+					throws ReflectiveOperationException {
+				watcherSet.invoke(watcher, watcherObject, watcherData, true);
+			}
+
+			private List<?> squidValues;
+			private List<?> guardianBaseValues;
+			private List<?> crystalBaseValues;
+			private Object guardianTemplateData;
+			private Object crystalTemplateData;
+
+			@Override
+			Object createPacketMetadata(int entityId, Object watcher) throws ReflectiveOperationException {
+				return packetMetadata.newInstance(entityId, watcherPack.invoke(watcher));
+			}
+
+			@Override
+			synchronized Object createPacketMetadataSquid(int entityId, Object watcher)
+					throws ReflectiveOperationException {
+				if (squidValues == null) {
+					Object template = createTemplateData(squidConstructor.newInstance(squidType, nmsWorld));
+					setEntityData(template, dataAccessorFlags, (byte) 32);
+					squidValues = List.copyOf((List<?>) watcherPack.invoke(template));
+				}
+				return packetMetadata.newInstance(entityId, squidValues);
+			}
+
+			@Override
+			Object createPacketMetadataGuardian(int entityId, Object watcher, int targetId)
+					throws ReflectiveOperationException {
+				Object targetValue;
+				synchronized (this) {
+					if (guardianTemplateData == null) {
+						guardianTemplateData = createTemplateData(guardianConstructor.newInstance(guardianType, nmsWorld));
+						setEntityData(guardianTemplateData, dataAccessorFlags, (byte) 32);
+						setEntityData(guardianTemplateData, dataAccessorGuardianMoving, Boolean.FALSE);
+						guardianBaseValues = List.copyOf((List<?>) watcherPack.invoke(guardianTemplateData));
+					}
+					setEntityData(guardianTemplateData, dataAccessorGuardianTarget, targetId);
+					targetValue = ((List<?>) watcherPack.invoke(guardianTemplateData)).get(0);
+				}
+				return packetMetadata.newInstance(entityId, withValue(guardianBaseValues, targetValue));
+			}
+
+			@Override
+			Object createPacketMetadataCrystal(int entityId, Object watcher, Location target)
+					throws ReflectiveOperationException {
+				Object blockPosition =
+						blockPositionConstructor.newInstance(target.getBlockX(), target.getBlockY(), target.getBlockZ());
+				Object targetValue;
+				synchronized (this) {
+					if (crystalTemplateData == null) {
+						crystalTemplateData = createTemplateData(crystalConstructor.newInstance(nmsWorld, 0d, 0d, 0d));
+						setEntityData(crystalTemplateData, dataAccessorCrystalBottom, Boolean.FALSE);
+						crystalBaseValues = List.copyOf((List<?>) watcherPack.invoke(crystalTemplateData));
+					}
+					setEntityData(crystalTemplateData, dataAccessorCrystalTarget, Optional.of(blockPosition));
+					targetValue = ((List<?>) watcherPack.invoke(crystalTemplateData)).get(0);
+				}
+				return packetMetadata.newInstance(entityId, withValue(crystalBaseValues, targetValue));
+			}
+
+			private Object createTemplateData(Object entity) throws ReflectiveOperationException {
+				Object data = getEntityData(entity);
+				watcherPack.invoke(data); // flushes values dirtied by the entity constructor
+				return data;
+			}
+
+			private static List<Object> withValue(List<?> baseValues, Object value) {
+				List<Object> values = new ArrayList<>(baseValues.size() + 1);
+				values.addAll(baseValues);
+				values.add(value);
+				return values;
+			}
+
+		}
+
+		/**
+		 * Since 1.21, the spawn packet needs the block position of the entity.
+		 */
+		private static class PacketAdapter_1_21 extends PacketAdapter_1_19_3 {
+
+			@Override
+			Object createPacketEntitySpawnNormal(Object entity) throws ReflectiveOperationException {
+				Object entityPos = entityBlockPosition.get(entity);
+				return packetSpawnNormal.newInstance(entity, 0, entityPos);
+			}
+
+		}
+
+		/**
+		 * Since 1.21.2, entities are moved with a position sync packet.
+		 */
+		private static class PacketAdapter_1_21_2 extends PacketAdapter_1_21 {
+
+			@Override
+			Object createPacketMoveEntity(Object entity) throws ReflectiveOperationException {
+				return packetTeleportOf.invoke(null, entity);
+			}
+
+		}
 	}
 
 	@FunctionalInterface
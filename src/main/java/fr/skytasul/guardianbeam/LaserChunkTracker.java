@@ -0,0 +1,200 @@
+package fr.skytasul.guardianbeam;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.util.*;
+
+/**
+ * Indexes started lasers by the chunks of their start and end locations, and puts them to sleep when none of those
+ * chunks are loaded anymore.
+ * <p>
+ * Lasers following an entity are tracked but never indexed nor put to sleep, as their locations change without the
+ * tracker being notified.
+ * <p>
+ * One instance is registered as a listener by the first plugin starting a laser.
+ */
+class LaserChunkTracker implements Listener {
+
+	private static LaserChunkTracker instance;
+
+	private final Map<UUID, Map<Long, Set<Laser>>> worlds = new HashMap<>();
+	private final Map<Laser, TrackedLaser> lasers = new HashMap<>();
+	private final Set<Laser> followingLasers = new HashSet<>();
+
+	private LaserChunkTracker() {}
+
+	static synchronized @NotNull LaserChunkTracker getInstance(@NotNull Plugin plugin) {
+		if (instance == null) {
+			instance = new LaserChunkTracker();
+			Bukkit.getPluginManager().registerEvents(instance, plugin);
+		}
+		return instance;
+	}
+
+	private static synchronized @Nullable LaserChunkTracker getInstanceIfPresent() {
+		return instance;
+	}
+
+	/**
+	 * Starts tracking a laser.
+	 * @param laser laser to index
+	 * @return <code>true</code> if at least one chunk of the laser is currently loaded
+	 */
+	synchronized boolean track(@NotNull Laser laser) {
+		if (laser.isFollowingEntity()) {
+			followingLasers.add(laser);
+			return true;
+		}
+		TrackedLaser tracked = TrackedLaser.of(laser);
+		lasers.put(laser, tracked);
+		index(tracked, laser);
+		return tracked.isLoaded(null);
+	}
+
+	static void untrack(@NotNull Laser laser) {
+		LaserChunkTracker tracker = getInstanceIfPresent();
+		if (tracker != null)
+			tracker.remove(laser);
+	}
+
+	static void update(@NotNull Laser laser) {
+		LaserChunkTracker tracker = getInstanceIfPresent();
+		if (tracker != null)
+			tracker.reindex(laser);
+	}
+
+	private synchronized void remove(Laser laser) {
+		followingLasers.remove(laser);
+		TrackedLaser tracked = lasers.remove(laser);
+		if (tracked != null)
+			unindex(tracked, laser);
+	}
+
+	private void reindex(Laser laser) {
+		boolean loaded;
+		synchronized (this) {
+			boolean wasFollowing = followingLasers.contains(laser);
+			TrackedLaser oldTracked = lasers.get(laser);
+			if (oldTracked == null && !wasFollowing)
+				return;
+			if (laser.isFollowingEntity()) {
+				if (wasFollowing)
+					return;
+				unindex(oldTracked, laser);
+				lasers.remove(laser);
+				followingLasers.add(laser);
+				loaded = true;
+			}else {
+				TrackedLaser tracked = TrackedLaser.of(laser);
+				if (tracked.equals(oldTracked))
+					return;
+				if (oldTracked != null)
+					unindex(oldTracked, laser);
+				followingLasers.remove(laser);
+				lasers.put(laser, tracked);
+				index(tracked, laser);
+				loaded = tracked.isLoaded(null);
+			}
+		}
+		if (loaded)
+			laser.wake();
+		else
+			laser.sleep();
+	}
+
+	private void index(TrackedLaser tracked, Laser laser) {
+		Map<Long, Set<Laser>> chunks = worlds.computeIfAbsent(tracked.world, __ -> new HashMap<>());
+		chunks.computeIfAbsent(tracked.startChunk, __ -> new HashSet<>(2)).add(laser);
+		chunks.computeIfAbsent(tracked.endChunk, __ -> new HashSet<>(2)).add(laser);
+	}
+
+	private void unindex(TrackedLaser tracked, Laser laser) {
+		Map<Long, Set<Laser>> chunks = worlds.get(tracked.world);
+		if (chunks == null)
+			return;
+		removeFromChunk(chunks, tracked.startChunk, laser);
+		removeFromChunk(chunks, tracked.endChunk, laser);
+		if (chunks.isEmpty())
+			worlds.remove(tracked.world);
+	}
+
+	private void removeFromChunk(Map<Long, Set<Laser>> chunks, long key, Laser laser) {
+		Set<Laser> set = chunks.get(key);
+		if (set != null && set.remove(laser) && set.isEmpty())
+			chunks.remove(key);
+	}
+
+	private synchronized List<Laser> getLasers(Chunk chunk) {
+		Map<Long, Set<Laser>> chunks = worlds.get(chunk.getWorld().getUID());
+		if (chunks == null)
+			return Collections.emptyList();
+		Set<Laser> set = chunks.get(chunkKey(chunk.getX(), chunk.getZ()));
+		return set == null ? Collections.emptyList() : new ArrayList<>(set);
+	}
+
+	@EventHandler (priority = EventPriority.MONITOR)
+	public void onChunkLoad(ChunkLoadEvent event) {
+		for (Laser laser : getLasers(event.getChunk())) {
+			laser.wake();
+		}
+	}
+
+	@EventHandler (priority = EventPriority.MONITOR)
+	public void onChunkUnload(ChunkUnloadEvent event) {
+		Chunk chunk = event.getChunk();
+		long key = chunkKey(chunk.getX(), chunk.getZ());
+		for (Laser laser : getLasers(chunk)) {
+			TrackedLaser tracked;
+			synchronized (this) {
+				tracked = lasers.get(laser);
+			}
+			// the chunk is still loaded while the event is fired, hence we exclude it manually
+			if (tracked != null && !tracked.isLoaded(key))
+				laser.sleep();
+		}
+	}
+
+	static long chunkKey(int chunkX, int chunkZ) {
+		return (long) chunkX << 32 | (chunkZ & 0xFFFFFFFFL);
+	}
+
+	private static record TrackedLaser(@NotNull UUID world, long startChunk, long endChunk) {
+
+		/**
+		 * Reads the chunks of a laser which does not follow any entity, hence whose start and end fields are its actual
+		 * locations.
+		 */
+		static TrackedLaser of(Laser laser) {
+			Location start = laser.start;
+			Location end = laser.end;
+			return new TrackedLaser(start.getWorld().getUID(),
+					chunkKey(start.getBlockX() >> 4, start.getBlockZ() >> 4),
+					chunkKey(end.getBlockX() >> 4, end.getBlockZ() >> 4));
+		}
+
+		boolean isLoaded(@Nullable Long excludedChunk) {
+			World bukkitWorld = Bukkit.getWorld(world);
+			if (bukkitWorld == null)
+				return false;
+			return isLoaded(bukkitWorld, startChunk, excludedChunk) || isLoaded(bukkitWorld, endChunk, excludedChunk);
+		}
+
+		private static boolean isLoaded(World world, long key, @Nullable Long excludedChunk) {
+			if (excludedChunk != null && excludedChunk == key)
+				return false;
+			return world.isChunkLoaded((int) (key >> 32), (int) key);
+		}
+
+	}
+
+}
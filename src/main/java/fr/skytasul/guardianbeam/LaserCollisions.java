@@ -0,0 +1,293 @@
+package fr.skytasul.guardianbeam;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.util.BoundingBox;
+import org.jetbrains.annotations.NotNull;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers intersection queries between bounding boxes and the beams of all started lasers.
+ * <p>
+ * Beams are indexed per world as segments going from the start to the end of the lasers, stored in parallel primitive
+ * arrays and bucketed by chunk column. The index is rebuilt lazily when a laser starts, stops or moves, and once per
+ * tick while some lasers follow entities.
+ * <p>
+ * Queries read entity positions and bounding boxes, hence they must be made from the main thread.
+ */
+public final class LaserCollisions {
+
+	private static final Set<Laser> lasers = ConcurrentHashMap.newKeySet();
+	private static final Map<World, WorldSegments> worlds = new HashMap<>();
+	private static volatile boolean dirty = true;
+	private static boolean hasMovingLasers;
+	private static LaserSnapshot builtFor;
+
+	private LaserCollisions() {}
+
+	static void add(@NotNull Laser laser) {
+		lasers.add(laser);
+		dirty = true;
+	}
+
+	static void remove(@NotNull Laser laser) {
+		if (lasers.remove(laser))
+			dirty = true;
+	}
+
+	static void invalidate() {
+		dirty = true;
+	}
+
+	/**
+	 * Gets the lasers whose beam intersects a bounding box.
+	 * @param world world of the bounding box
+	 * @param box bounding box to test
+	 * @return lasers hitting the box, in no particular order
+	 */
+	public static synchronized @NotNull List<Laser> getLasersHitting(@NotNull World world, @NotNull BoundingBox box) {
+		WorldSegments segments = getSegments(world);
+		if (segments == null)
+			return Collections.emptyList();
+		List<Laser> hits = new ArrayList<>();
+		segments.query(box, hits);
+		return hits;
+	}
+
+	/**
+	 * Gets, among some entities, the ones intersecting the beam of at least one laser.
+	 * @param entities entities to test, which can be in different worlds
+	 * @return map from entities hit to the lasers hitting them
+	 */
+	public static synchronized @NotNull Map<Entity, List<Laser>> getEntitiesHit(
+			@NotNull Collection<? extends Entity> entities) {
+		Map<Entity, List<Laser>> hits = new HashMap<>();
+		List<Laser> entityHits = new ArrayList<>();
+		for (Entity entity : entities) {
+			WorldSegments segments = getSegments(entity.getWorld());
+			if (segments == null)
+				continue;
+			segments.query(entity.getBoundingBox(), entityHits);
+			if (!entityHits.isEmpty()) {
+				hits.put(entity, new ArrayList<>(entityHits));
+				entityHits.clear();
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * Gets the entities of a world intersecting the beam of at least one laser.
+	 * @param world world to look into
+	 * @return map from entities hit to the lasers hitting them
+	 */
+	public static @NotNull Map<Entity, List<Laser>> getEntitiesHit(@NotNull World world) {
+		if (getSegments(world) == null)
+			return Collections.emptyMap();
+		return getEntitiesHit(world.getEntities());
+	}
+
+	/**
+	 * Gets the players of a world intersecting the beam of at least one laser.
+	 * @param world world to look into
+	 * @return map from players hit to the lasers hitting them
+	 */
+	@SuppressWarnings ("unchecked")
+	public static @NotNull Map<Player, List<Laser>> getPlayersHit(@NotNull World world) {
+		if (getSegments(world) == null)
+			return Collections.emptyMap();
+		return (Map<Player, List<Laser>>) (Map<?, ?>) getEntitiesHit(world.getPlayers());
+	}
+
+	private static synchronized WorldSegments getSegments(World world) {
+		if (dirty || (hasMovingLasers && builtFor != LaserSnapshot.current()))
+			rebuild();
+		return worlds.get(world);
+	}
+
+	private static void rebuild() {
+		dirty = false;
+		builtFor = LaserSnapshot.current();
+		hasMovingLasers = false;
+		worlds.values().forEach(WorldSegments::clear);
+		for (Laser laser : lasers) {
+			Location start = laser.getStart();
+			Location end = laser.getEnd();
+			if (start.getWorld() != end.getWorld())
+				continue;
+			worlds.computeIfAbsent(start.getWorld(), __ -> new WorldSegments()).add(laser, start, end);
+			hasMovingLasers |= laser.isFollowingEntity();
+		}
+		worlds.values().removeIf(segments -> segments.size == 0);
+	}
+
+	/**
+	 * Beam segments of a world.
+	 * <p>
+	 * A segment is stored as its origin and the inverse of its direction, so that the intersection with a box is a
+	 * branch-free slab test over the segment parameter <code>t</code> in <code>[0, 1]</code>.
+	 */
+	private static final class WorldSegments {
+
+		/** Segments covering more chunk columns than this are tested on every query. */
+		private static final int MAX_CELLS = 64;
+		/** Direction components under this value are replaced to keep the inverse finite. */
+		private static final double EPSILON = 1e-9;
+
+		private int size;
+		private Laser[] lasers = new Laser[16];
+		private double[] ox = new double[16], oy = new double[16], oz = new double[16];
+		private double[] ix = new double[16], iy = new double[16], iz = new double[16];
+
+		private final Map<Long, Cell> cells = new HashMap<>();
+		private final Cell unbounded = new Cell();
+
+		private int[] stamps = new int[16];
+		private int stamp;
+		private int[] candidates = new int[16];
+		private boolean[] results = new boolean[16];
+
+		void clear() {
+			Arrays.fill(lasers, 0, size, null);
+			size = 0;
+			cells.clear();
+			unbounded.size = 0;
+		}
+
+		void add(Laser laser, Location start, Location end) {
+			if (size == lasers.length) {
+				int capacity = size * 2;
+				lasers = Arrays.copyOf(lasers, capacity);
+				ox = Arrays.copyOf(ox, capacity);
+				oy = Arrays.copyOf(oy, capacity);
+				oz = Arrays.copyOf(oz, capacity);
+				ix = Arrays.copyOf(ix, capacity);
+				iy = Arrays.copyOf(iy, capacity);
+				iz = Arrays.copyOf(iz, capacity);
+			}
+			int index = size++;
+			lasers[index] = laser;
+			ox[index] = start.getX();
+			oy[index] = start.getY();
+			oz[index] = start.getZ();
+			ix[index] = inverse(end.getX() - start.getX());
+			iy[index] = inverse(end.getY() - start.getY());
+			iz[index] = inverse(end.getZ() - start.getZ());
+
+			int minCellX = floor(Math.min(start.getX(), end.getX())) >> 4;
+			int maxCellX = floor(Math.max(start.getX(), end.getX())) >> 4;
+			int minCellZ = floor(Math.min(start.getZ(), end.getZ())) >> 4;
+			int maxCellZ = floor(Math.max(start.getZ(), end.getZ())) >> 4;
+			if ((long) (maxCellX - minCellX + 1) * (maxCellZ - minCellZ + 1) > MAX_CELLS) {
+				unbounded.add(index);
+				return;
+			}
+			for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+				for (int cellZ = minCellZ; cellZ <= maxCellZ; cellZ++) {
+					cells.computeIfAbsent(LaserChunkTracker.chunkKey(cellX, cellZ), __ -> new Cell()).add(index);
+				}
+			}
+		}
+
+		void query(BoundingBox box, List<Laser> hits) {
+			double minX = box.getMinX(), minY = box.getMinY(), minZ = box.getMinZ();
+			double maxX = box.getMaxX(), maxY = box.getMaxY(), maxZ = box.getMaxZ();
+
+			int minCellX = floor(minX) >> 4, maxCellX = floor(maxX) >> 4;
+			int minCellZ = floor(minZ) >> 4, maxCellZ = floor(maxZ) >> 4;
+			if ((long) (maxCellX - minCellX + 1) * (maxCellZ - minCellZ + 1) > MAX_CELLS) {
+				// a scan over the contiguous arrays is cheaper than collecting the cells
+				if (results.length < size)
+					results = new boolean[lasers.length];
+				for (int i = 0; i < size; i++) {
+					results[i] = intersects(i, minX, minY, minZ, maxX, maxY, maxZ);
+				}
+				for (int i = 0; i < size; i++) {
+					if (results[i])
+						hits.add(lasers[i]);
+				}
+				return;
+			}
+
+			if (stamps.length < size)
+				stamps = new int[lasers.length];
+			if (++stamp == 0) {
+				Arrays.fill(stamps, 0);
+				stamp = 1;
+			}
+			int count = collect(unbounded, 0);
+			for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+				for (int cellZ = minCellZ; cellZ <= maxCellZ; cellZ++) {
+					Cell cell = cells.get(LaserChunkTracker.chunkKey(cellX, cellZ));
+					if (cell != null)
+						count = collect(cell, count);
+				}
+			}
+			if (results.length < count)
+				results = new boolean[candidates.length];
+			for (int i = 0; i < count; i++) {
+				results[i] = intersects(candidates[i], minX, minY, minZ, maxX, maxY, maxZ);
+			}
+			for (int i = 0; i < count; i++) {
+				if (results[i])
+					hits.add(lasers[candidates[i]]);
+			}
+		}
+
+		private int collect(Cell cell, int count) {
+			for (int i = 0; i < cell.size; i++) {
+				int index = cell.indexes[i];
+				if (stamps[index] == stamp)
+					continue;
+				stamps[index] = stamp;
+				if (count == candidates.length)
+					candidates = Arrays.copyOf(candidates, count * 2);
+				candidates[count++] = index;
+			}
+			return count;
+		}
+
+		/**
+		 * Slab test between a segment and a box. It has no branch so that loops calling it over many segments can be
+		 * compiled to vector instructions.
+		 */
+		private boolean intersects(int i, double minX, double minY, double minZ, double maxX, double maxY,
+				double maxZ) {
+			double x1 = (minX - ox[i]) * ix[i], x2 = (maxX - ox[i]) * ix[i];
+			double y1 = (minY - oy[i]) * iy[i], y2 = (maxY - oy[i]) * iy[i];
+			double z1 = (minZ - oz[i]) * iz[i], z2 = (maxZ - oz[i]) * iz[i];
+			double tMin = Math.max(Math.max(0, Math.min(x1, x2)), Math.max(Math.min(y1, y2), Math.min(z1, z2)));
+			double tMax = Math.min(Math.min(1, Math.max(x1, x2)), Math.min(Math.max(y1, y2), Math.max(z1, z2)));
+			return tMin <= tMax;
+		}
+
+		private static double inverse(double direction) {
+			if (Math.abs(direction) < EPSILON)
+				direction = direction < 0 ? -EPSILON : EPSILON;
+			return 1 / direction;
+		}
+
+		private static int floor(double value) {
+			int floor = (int) value;
+			return value < floor ? floor - 1 : floor;
+		}
+
+	}
+
+	private static final class Cell {
+
+		private int[] indexes = new int[4];
+		private int size;
+
+		void add(int index) {
+			if (size == indexes.length)
+				indexes = Arrays.copyOf(indexes, size * 2);
+			indexes[size++] = index;
+		}
+
+	}
+
+}
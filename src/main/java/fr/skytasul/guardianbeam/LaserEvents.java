@@ -0,0 +1,147 @@
+package fr.skytasul.guardianbeam;
+
+import jdk.jfr.*;
+import java.util.StringJoiner;
+
+/**
+ * JDK Flight Recorder events emitted by the lasers.
+ * <p>
+ * All events are disabled by default. They can be enabled in a recording configuration, for instance with
+ * <code>jcmd &lt;pid&gt; JFR.start settings=profile +fr.skytasul.guardianbeam.VisibilityPass#enabled=true</code>, or
+ * all at once from JDK Mission Control. Disabled events are neither filled nor committed.
+ */
+final class LaserEvents {
+
+	private static final String CATEGORY = "GuardianBeam";
+
+	private LaserEvents() {}
+
+	static void laserCreated(Laser laser) {
+		LaserCreated event = new LaserCreated();
+		if (event.isEnabled()) {
+			event.fill(laser);
+			event.commit();
+		}
+	}
+
+	static void laserStarted(Laser laser) {
+		LaserStarted event = new LaserStarted();
+		if (event.isEnabled()) {
+			event.fill(laser);
+			event.commit();
+		}
+	}
+
+	static void laserStopped(Laser laser) {
+		LaserStopped event = new LaserStopped();
+		if (event.isEnabled()) {
+			event.fill(laser);
+			event.commit();
+		}
+	}
+
+	static void packetsSent(Object[] packets, int viewers) {
+		PacketSend event = new PacketSend();
+		if (event.isEnabled()) {
+			StringJoiner types = new StringJoiner(",");
+			for (Object packet : packets) {
+				if (packet != null)
+					types.add(packet.getClass().getSimpleName());
+			}
+			event.packetTypes = types.toString();
+			event.packets = packets.length;
+			event.viewers = viewers;
+			event.commit();
+		}
+	}
+
+	static void reflectionFailure(String message, Throwable cause) {
+		ReflectionFailure event = new ReflectionFailure();
+		if (event.isEnabled()) {
+			event.message = message;
+			event.exception = cause == null ? null : cause.getClass().getName() + ": " + cause.getMessage();
+			event.commit();
+		}
+	}
+
+	@Category (CATEGORY)
+	@Enabled (false)
+	@StackTrace (false)
+	abstract static class LaserEvent extends Event {
+
+		@Label ("Laser Type")
+		String laserType;
+
+		@Label ("Laser Identity")
+		@Description ("Identity hash code of the laser instance")
+		int laserId;
+
+		void fill(Laser laser) {
+			laserType = laser.getLaserType().name();
+			laserId = System.identityHashCode(laser);
+		}
+
+	}
+
+	@Name ("fr.skytasul.guardianbeam.LaserCreated")
+	@Label ("Laser Created")
+	static final class LaserCreated extends LaserEvent {}
+
+	@Name ("fr.skytasul.guardianbeam.LaserStarted")
+	@Label ("Laser Started")
+	static final class LaserStarted extends LaserEvent {}
+
+	@Name ("fr.skytasul.guardianbeam.LaserStopped")
+	@Label ("Laser Stopped")
+	static final class LaserStopped extends LaserEvent {}
+
+	@Name ("fr.skytasul.guardianbeam.VisibilityPass")
+	@Label ("Visibility Pass")
+	@Description ("Computation of the players who see a laser, with the packets sent as a result")
+	static final class VisibilityPass extends LaserEvent {
+
+		@Label ("Players Scanned")
+		int playersScanned;
+
+		@Label ("Spawns")
+		@Description ("Players who were sent the laser, or queued to be sent it")
+		int spawns;
+
+		@Label ("Destroys")
+		int destroys;
+
+	}
+
+	@Name ("fr.skytasul.guardianbeam.PacketSend")
+	@Label ("Packet Send")
+	@Category (CATEGORY)
+	@Enabled (false)
+	@StackTrace (false)
+	static final class PacketSend extends Event {
+
+		@Label ("Packet Types")
+		String packetTypes;
+
+		@Label ("Packets")
+		int packets;
+
+		@Label ("Viewers")
+		int viewers;
+
+	}
+
+	@Name ("fr.skytasul.guardianbeam.ReflectionFailure")
+	@Label ("Reflection Failure")
+	@Category (CATEGORY)
+	@Enabled (false)
+	static final class ReflectionFailure extends Event {
+
+		@Label ("Message")
+		String message;
+
+		@Label ("Exception")
+		String exception;
+
+	}
+
+}
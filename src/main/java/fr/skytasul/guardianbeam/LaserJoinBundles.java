@@ -0,0 +1,209 @@
+package fr.skytasul.guardianbeam;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.util.*;
+
+/**
+ * Groups started lasers by regions of 4 by 4 chunks, and caches the spawn packets of all lasers of a region so that a
+ * player arriving among them receives one prebuilt sequence instead of each laser sending its own packets.
+ * <p>
+ * Only static lasers are grouped: the packets of lasers following entities depend on the entities. The packets of a
+ * region are built the first time a player needs them, and dropped as soon as one of its lasers starts, stops, moves
+ * or changes. They are sent as bundle packets when the server supports them.
+ * <p>
+ * Only the lasers which are seen or awaited by players are part of the cached packets, so that building them does not
+ * create the fake entities of idle lasers. The cached packets are also dropped when a laser releases its fake
+ * entities, so they are never retained longer than the lasers hold their own packets.
+ * <p>
+ * The cached packets are built outside of the lock of this class, because lasers update the regions while holding
+ * their own lock.
+ */
+final class LaserJoinBundles {
+
+	/** Size of a region, as a shift of block coordinates */
+	private static final int REGION_SHIFT = 6;
+
+	private static final Map<RegionKey, Region> regions = new HashMap<>();
+	private static final Map<Laser, Region> lasers = new HashMap<>();
+
+	private LaserJoinBundles() {}
+
+	/**
+	 * Puts a laser in the region of its start location, or removes it from any region if it is not running anymore or
+	 * if it follows an entity. The cached packets of the affected regions are dropped.
+	 */
+	static synchronized void update(@NotNull Laser laser) {
+		removeLaser(laser);
+		if (!laser.isStarted() || laser.isDormant() || laser.isFollowingEntity())
+			return;
+		Location start = laser.start;
+		RegionKey key = new RegionKey(start.getWorld().getUID(), start.getBlockX() >> REGION_SHIFT,
+				start.getBlockZ() >> REGION_SHIFT);
+		Region region = regions.computeIfAbsent(key, Region::new);
+		region.lasers.add(laser);
+		region.invalidate();
+		lasers.put(laser, region);
+	}
+
+	static synchronized void remove(@NotNull Laser laser) {
+		removeLaser(laser);
+	}
+
+	/**
+	 * Drops the cached packets of the region of a laser, after the spawn packets of this laser changed.
+	 */
+	static synchronized void invalidate(@NotNull Laser laser) {
+		Region region = lasers.get(laser);
+		if (region != null)
+			region.invalidate();
+	}
+
+	/**
+	 * Gets the region of a laser, if it is grouped with other lasers.
+	 * @return region of the laser, or <code>null</code> if it is alone in its region or not grouped at all
+	 */
+	static synchronized @Nullable Region getRegion(@NotNull Laser laser) {
+		Region region = lasers.get(laser);
+		return region == null || region.lasers.size() < 2 ? null : region;
+	}
+
+	/**
+	 * Estimates the heap memory retained by the cached packets of the region of a laser, shared out between the lasers
+	 * of the region. The spawn packets themselves are held by the lasers: only the arrays and bundles are counted.
+	 * @return estimated retained size, in bytes
+	 */
+	static synchronized long getRetainedBytesEstimate(@NotNull Laser laser) {
+		Region region = lasers.get(laser);
+		if (region == null || region.packets == null)
+			return 0;
+		RegionPackets packets = region.packets;
+		long size = Laser.MemoryEstimates.REFERENCE
+				* (packets.lasers.length + packets.packets.length + packets.offsets.length + packets.bundles.length)
+				+ Laser.MemoryEstimates.PACKET * packets.bundles.length;
+		return size / region.lasers.size();
+	}
+
+	private static void removeLaser(Laser laser) {
+		Region region = lasers.remove(laser);
+		if (region == null)
+			return;
+		region.lasers.remove(laser);
+		region.invalidate();
+		if (region.lasers.isEmpty())
+			regions.remove(region.key);
+	}
+
+	static final class Region {
+
+		private final @NotNull RegionKey key;
+		private final Set<Laser> lasers = new LinkedHashSet<>();
+		private int version;
+		private @Nullable RegionPackets packets;
+
+		private Region(@NotNull RegionKey key) {
+			this.key = key;
+		}
+
+		private void invalidate() {
+			version++;
+			packets = null;
+		}
+
+		/**
+		 * Spawns, for a player waiting in the {@link LaserSpawnQueue}, all the lasers of the cached packets of this
+		 * region waiting for this player. Their packets are sent at once: the cached bundles if all those lasers were
+		 * waiting, or bundles assembled from the cached packets of the waiting lasers otherwise.
+		 * <p>
+		 * Waiting lasers missing from the cached packets are left waiting: the caller must spawn them on their own.
+		 * @param player player the lasers are spawned for
+		 * @throws ReflectiveOperationException if a reflection exception occurred while building or sending packets
+		 */
+		void spawn(@NotNull Player player) throws ReflectiveOperationException {
+			RegionPackets packets = getPackets();
+			List<Object> firstSight = new ArrayList<>();
+			boolean[] claimed = new boolean[packets.lasers.length];
+			int claimedAmount = 0;
+			for (int i = 0; i < claimed.length; i++) {
+				Laser laser = packets.lasers[i];
+				if (!laser.claimQueuedSpawn(player))
+					continue;
+				claimed[i] = true;
+				claimedAmount++;
+				if (laser.markSeen(player))
+					laser.collectFirstSightPackets(firstSight);
+			}
+			if (claimedAmount == 0)
+				return;
+
+			boolean current;
+			synchronized (LaserJoinBundles.class) {
+				current = this.packets == packets;
+			}
+			if (!current) {
+				// a laser changed meanwhile: the cached packets may show it as it was before
+				for (int i = 0; i < claimed.length; i++) {
+					if (claimed[i])
+						packets.lasers[i].sendStartPackets(player, true);
+				}
+			}else if (claimedAmount == claimed.length) {
+				Laser.Packets.sendPackets(player, packets.bundles);
+			}else {
+				List<Object> spawnPackets = new ArrayList<>();
+				for (int i = 0; i < claimed.length; i++) {
+					if (claimed[i])
+						spawnPackets.addAll(
+								Arrays.asList(packets.packets).subList(packets.offsets[i], packets.offsets[i + 1]));
+				}
+				Laser.Packets.sendPackets(player, Laser.Packets.createBundles(spawnPackets));
+			}
+			if (!firstSight.isEmpty())
+				Laser.Packets.sendPackets(player, firstSight.toArray());
+		}
+
+		private @NotNull RegionPackets getPackets() throws ReflectiveOperationException {
+			int builtVersion;
+			List<Laser> members;
+			synchronized (LaserJoinBundles.class) {
+				if (packets != null)
+					return packets;
+				builtVersion = version;
+				members = new ArrayList<>(lasers);
+			}
+
+			List<Laser> included = new ArrayList<>(members.size());
+			List<Object> spawnPackets = new ArrayList<>(members.size() * 4);
+			int[] offsets = new int[members.size() + 1];
+			for (Laser laser : members) {
+				int from = spawnPackets.size();
+				if (laser.collectCachedSpawnPackets(spawnPackets)) {
+					included.add(laser);
+					offsets[included.size()] = spawnPackets.size();
+				}else {
+					spawnPackets.subList(from, spawnPackets.size()).clear();
+				}
+			}
+			RegionPackets built = new RegionPackets(included.toArray(Laser[]::new), spawnPackets.toArray(),
+					Arrays.copyOf(offsets, included.size() + 1), Laser.Packets.createBundles(spawnPackets));
+
+			synchronized (LaserJoinBundles.class) {
+				if (version == builtVersion)
+					packets = built;
+			}
+			return built;
+		}
+
+	}
+
+	/**
+	 * Spawn packets of the lasers of a region. The packets of the laser at index <code>i</code> lie between
+	 * <code>offsets[i]</code> inclusive and <code>offsets[i + 1]</code> exclusive.
+	 */
+	private static record RegionPackets(@NotNull Laser[] lasers, @NotNull Object[] packets, int[] offsets,
+			@NotNull Object[] bundles) {}
+
+	private static record RegionKey(@NotNull UUID world, int x, int z) {}
+
+}
@@ -0,0 +1,57 @@
+package fr.skytasul.guardianbeam;
+
+import org.bukkit.Location;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Applies the positions offered with {@link Laser#offerStart(Location)} and {@link Laser#offerEnd(Location)} once per
+ * tick.
+ * <p>
+ * Lasers with offered positions are queued once until their positions are applied, whatever the amount of offers
+ * made meanwhile: only the latest offered positions are applied.
+ * <p>
+ * Producers never block: lasers are queued in a lock-free queue, and the drain task is started by the producer which
+ * wins the flag marking it as scheduled.
+ */
+final class LaserPositionStream {
+
+	private static final Queue<Laser> lasers = new ConcurrentLinkedQueue<>();
+	private static final AtomicBoolean scheduled = new AtomicBoolean();
+
+	private LaserPositionStream() {}
+
+	static void enqueue(@NotNull Plugin plugin, @NotNull Laser laser) {
+		lasers.add(laser);
+		if (scheduled.compareAndSet(false, true)) {
+			DrainTask drain = new DrainTask();
+			drain.task = Laser.getScheduler().runTimer(plugin, null, drain, 1L, 1L, true);
+		}
+	}
+
+	private static class DrainTask implements Runnable {
+		private volatile LaserScheduler.Task task;
+
+		@Override
+		public void run() {
+			// lasers queued while draining wait for the next tick
+			for (int i = lasers.size(); i > 0; i--) {
+				Laser laser = lasers.poll();
+				if (laser == null)
+					break;
+				laser.submitPacketTask(laser::applyOfferedPositions);
+			}
+			if (!lasers.isEmpty())
+				return;
+			scheduled.set(false);
+			// a laser queued right before the flag reset did not start a task: this one keeps running for it, unless
+			// another producer already started a new task
+			if (lasers.isEmpty() || !scheduled.compareAndSet(false, true))
+				task.cancel();
+		}
+	}
+
+}
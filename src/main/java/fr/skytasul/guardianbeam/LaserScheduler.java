@@ -0,0 +1,105 @@
+package fr.skytasul.guardianbeam;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Runs the tasks of lasers.
+ * <p>
+ * On region-threaded servers, work tied to a location must run on the thread owning this location: tasks are hence
+ * scheduled with the location they work on, and lasers check {@link #isOwnedByCurrentThread(Location)} to move their
+ * tasks when their start location changes of region.
+ * <p>
+ * The implementation used by lasers can be changed with {@link Laser#setScheduler(LaserScheduler)}, for instance to
+ * run them with a local stand-in in tests.
+ */
+public interface LaserScheduler {
+
+	/**
+	 * Runs a task repeatedly.
+	 * @param plugin plugin owning the task
+	 * @param location location the task works on, <code>null</code> if it is not tied to a location
+	 * @param task task to run
+	 * @param delay ticks before the first run
+	 * @param period ticks between two runs
+	 * @param async <code>true</code> if the task can run off the main thread. Ignored for tasks with a location on
+	 *        region-threaded servers, as they run on the owning region thread.
+	 * @return handle to cancel the task
+	 */
+	@NotNull
+	Task runTimer(@NotNull Plugin plugin, @Nullable Location location, @NotNull Runnable task, long delay, long period,
+			boolean async);
+
+	/**
+	 * Runs a task repeatedly on the thread owning an entity, which follows the entity when it changes of region.
+	 * <p>
+	 * By default, the task runs on the main thread, as {@link #runTimer} does for tasks without location.
+	 * @param plugin plugin owning the task
+	 * @param entity entity the task works on
+	 * @param task task to run
+	 * @param retired task run instead, if the entity is removed before the task is cancelled. It may not be run on
+	 *        servers where a single thread owns every entity.
+	 * @param delay ticks before the first run
+	 * @param period ticks between two runs
+	 * @return handle to cancel the task
+	 */
+	default @NotNull Task runEntityTimer(@NotNull Plugin plugin, @NotNull Entity entity, @NotNull Runnable task,
+			@NotNull Runnable retired, long delay, long period) {
+		return runTimer(plugin, null, task, delay, period, false);
+	}
+
+	/**
+	 * Runs a task once, during the next tick.
+	 * @param plugin plugin owning the task
+	 * @param location location the task works on, <code>null</code> if it is not tied to a location
+	 * @param task task to run
+	 */
+	void run(@NotNull Plugin plugin, @Nullable Location location, @NotNull Runnable task);
+
+	/**
+	 * Checks if the current thread can work on a location.
+	 * @param location location to check
+	 * @return <code>true</code> if tasks scheduled with this location run on the current thread
+	 */
+	boolean isOwnedByCurrentThread(@NotNull Location location);
+
+	/**
+	 * Checks if locations are owned by several threads. When they are not, lasers share their periodic tasks instead of
+	 * scheduling one task each.
+	 * @return <code>true</code> if tasks must be scheduled with the location they work on to run on the right thread
+	 */
+	default boolean isRegionThreaded() {
+		return false;
+	}
+
+	/**
+	 * Gets the scheduler matching the server: one running tasks on region threads on Folia, the Bukkit scheduler
+	 * otherwise.
+	 * @return a new scheduler
+	 */
+	static @NotNull LaserScheduler detect() {
+		if (FoliaLaserScheduler.isSupported()) {
+			try {
+				return new FoliaLaserScheduler();
+			}catch (ReflectiveOperationException ex) {
+				throw new IllegalStateException("Cannot access the region schedulers of the server", ex);
+			}
+		}
+		return new BukkitLaserScheduler();
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	interface Task {
+
+		void cancel();
+
+		boolean isCancelled();
+
+	}
+
+}
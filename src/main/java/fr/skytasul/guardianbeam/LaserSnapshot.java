@@ -0,0 +1,288 @@
+package fr.skytasul.guardianbeam;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable positions of all online players, and of the entities lasers are attached to, captured once per tick while
+ * some lasers are started.
+ * <p>
+ * Positions are stored in parallel primitive arrays. Players of a same world are stored contiguously, followed by the
+ * entities attached to started lasers. Velocities are derived from the position of the same entity in the previous
+ * snapshot. Lasers read the {@link #current()} snapshot from their asynchronous tasks instead of querying
+ * Bukkit entities off the main thread.
+ * <p>
+ * On region-threaded servers, no thread can read all entities: each entity is then sampled every tick by a task
+ * running on the region owning it, and the snapshot is assembled from the latest samples.
+ */
+final class LaserSnapshot {
+
+	private static final LaserSnapshot EMPTY = new LaserSnapshot(0, Collections.emptyMap());
+
+	/**
+	 * Squared speed, in blocks per tick, above which a move is considered as a teleportation and not as a velocity.
+	 */
+	private static final double MAX_SPEED_SQUARED = 4 * 4;
+
+	private static volatile LaserSnapshot current = EMPTY;
+	private static final Set<Object> users = ConcurrentHashMap.newKeySet();
+	private static Plugin plugin;
+	private static LaserScheduler.Task task;
+
+	/** Latest positions of the sampled entities, on region-threaded servers */
+	private static final Map<Entity, Location> samples = new ConcurrentHashMap<>();
+	private static final Map<Entity, LaserScheduler.Task> samplers = new HashMap<>();
+
+	final Entity[] entities;
+	final World[] worlds;
+	final double[] x, y, z;
+	/** Velocity in blocks per tick, zero for entities absent from the previous snapshot */
+	final double[] vx, vy, vz;
+	final float[] yaw, pitch;
+
+	private final Map<World, WorldRange> worldRanges;
+	private final Map<Entity, Integer> indexes;
+
+	private LaserSnapshot(int capacity, Map<World, WorldRange> worldRanges) {
+		this.entities = new Entity[capacity];
+		this.worlds = new World[capacity];
+		this.x = new double[capacity];
+		this.y = new double[capacity];
+		this.z = new double[capacity];
+		this.vx = new double[capacity];
+		this.vy = new double[capacity];
+		this.vz = new double[capacity];
+		this.yaw = new float[capacity];
+		this.pitch = new float[capacity];
+		this.worldRanges = worldRanges;
+		this.indexes = new IdentityHashMap<>(capacity);
+	}
+
+	/**
+	 * Gets the last captured snapshot.
+	 * @return current snapshot, empty if none has been captured yet
+	 */
+	static @NotNull LaserSnapshot current() {
+		return current;
+	}
+
+	/**
+	 * Registers a user of the snapshots, and starts capturing them every tick if it is not already the case.
+	 * <p>
+	 * When called from the main thread, a first snapshot is captured immediately.
+	 * @param plugin plugin used to start the capture task
+	 * @param user started laser, whose attached entities are then included in the snapshots, or any other object which
+	 *        needs the positions of the players
+	 */
+	static synchronized void add(@NotNull Plugin plugin, @NotNull Object user) {
+		users.add(user);
+		if (task != null && !task.isCancelled())
+			return;
+		LaserSnapshot.plugin = plugin;
+		task = Laser.getScheduler().runTimer(plugin, null, LaserSnapshot::capture, 1L, 1L, false);
+		if (Bukkit.isPrimaryThread())
+			capture();
+	}
+
+	/**
+	 * Unregisters a user, for instance a laser which is stopped or put to sleep. The capture stops once no user is
+	 * registered anymore.
+	 * @param user user to unregister
+	 */
+	static synchronized void remove(@NotNull Object user) {
+		if (!users.remove(user) || !users.isEmpty())
+			return;
+		if (task != null) {
+			task.cancel();
+			task = null;
+		}
+		samplers.values().forEach(LaserScheduler.Task::cancel);
+		samplers.clear();
+		samples.clear();
+		current = EMPTY;
+	}
+
+	private static void capture() {
+		LaserThrottle.tick();
+		// entities are dropped as soon as no laser is attached to them anymore
+		Set<Entity> trackedEntities = new LinkedHashSet<>();
+		for (Object user : users) {
+			if (user instanceof Laser laser)
+				laser.collectAttachedEntities(trackedEntities);
+		}
+		trackedEntities.removeIf(entity -> entity instanceof Player);
+
+		if (Laser.getScheduler().isRegionThreaded())
+			current = assemble(trackedEntities);
+		else
+			current = read(trackedEntities);
+	}
+
+	/**
+	 * Reads the positions of all entities directly, from the thread owning all of them.
+	 */
+	private static LaserSnapshot read(Set<Entity> trackedEntities) {
+		List<World> worlds = Bukkit.getWorlds();
+		List<List<Player>> players = new ArrayList<>(worlds.size());
+		int capacity = 0;
+		for (World world : worlds) {
+			List<Player> worldPlayers = world.getPlayers();
+			players.add(worldPlayers);
+			capacity += worldPlayers.size();
+		}
+		trackedEntities.removeIf(entity -> !entity.isValid());
+		capacity += trackedEntities.size();
+
+		Map<World, WorldRange> ranges = new HashMap<>(worlds.size());
+		LaserSnapshot snapshot = new LaserSnapshot(capacity, ranges);
+		LaserSnapshot previous = current;
+		Location location = new Location(null, 0, 0, 0);
+		int index = 0;
+		for (int i = 0; i < worlds.size(); i++) {
+			int from = index;
+			for (Player player : players.get(i)) {
+				snapshot.put(index++, player, player.getLocation(location), previous);
+			}
+			if (index != from)
+				ranges.put(worlds.get(i), new WorldRange(from, index));
+		}
+		for (Entity entity : trackedEntities) {
+			snapshot.put(index++, entity, entity.getLocation(location), previous);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Builds a snapshot from the latest samples taken on the threads owning the entities, and starts or stops the
+	 * sampling tasks of the entities which appeared or are not needed anymore.
+	 */
+	private static LaserSnapshot assemble(Set<Entity> trackedEntities) {
+		// the list of online players can be read from any thread, unlike the players of a world
+		Collection<? extends Player> onlinePlayers = Bukkit.getOnlinePlayers();
+		Set<Entity> sampled = new HashSet<>(onlinePlayers);
+		sampled.addAll(trackedEntities);
+		updateSamplers(sampled);
+
+		List<World> worlds = Bukkit.getWorlds();
+		Map<World, List<Player>> players = new HashMap<>(worlds.size());
+		int capacity = 0;
+		for (Player player : onlinePlayers) {
+			Location sample = samples.get(player);
+			if (sample == null)
+				continue; // not sampled yet
+			players.computeIfAbsent(sample.getWorld(), __ -> new ArrayList<>()).add(player);
+			capacity++;
+		}
+		trackedEntities.removeIf(entity -> !samples.containsKey(entity));
+		capacity += trackedEntities.size();
+
+		Map<World, WorldRange> ranges = new HashMap<>(worlds.size());
+		LaserSnapshot snapshot = new LaserSnapshot(capacity, ranges);
+		LaserSnapshot previous = current;
+		int index = 0;
+		for (World world : worlds) {
+			List<Player> worldPlayers = players.get(world);
+			if (worldPlayers == null)
+				continue;
+			int from = index;
+			for (Player player : worldPlayers) {
+				snapshot.put(index++, player, samples.get(player), previous);
+			}
+			ranges.put(world, new WorldRange(from, index));
+		}
+		for (Entity entity : trackedEntities) {
+			// a sample may have been dropped meanwhile, the entity then waits for the next snapshot
+			Location sample = samples.get(entity);
+			if (sample != null)
+				snapshot.put(index++, entity, sample, previous);
+		}
+		return snapshot;
+	}
+
+	private static synchronized void updateSamplers(Set<Entity> sampled) {
+		if (task == null)
+			return; // the capture has been stopped meanwhile
+		for (Iterator<Map.Entry<Entity, LaserScheduler.Task>> iterator = samplers.entrySet().iterator();
+				iterator.hasNext();) {
+			Map.Entry<Entity, LaserScheduler.Task> entry = iterator.next();
+			if (!sampled.contains(entry.getKey())) {
+				entry.getValue().cancel();
+				samples.remove(entry.getKey());
+				iterator.remove();
+			}
+		}
+		for (Entity entity : sampled) {
+			if (samplers.containsKey(entity))
+				continue;
+			// each sample is a new location, never modified once published
+			LaserScheduler.Task sampler = Laser.getScheduler().runEntityTimer(plugin, entity,
+					() -> samples.put(entity, entity.getLocation()), () -> forget(entity), 1L, 1L);
+			if (!sampler.isCancelled())
+				samplers.put(entity, sampler);
+		}
+	}
+
+	private static synchronized void forget(Entity entity) {
+		samplers.remove(entity);
+		samples.remove(entity);
+	}
+
+	private void put(int index, Entity entity, Location location, LaserSnapshot previous) {
+		entities[index] = entity;
+		worlds[index] = location.getWorld();
+		x[index] = location.getX();
+		y[index] = location.getY();
+		z[index] = location.getZ();
+		yaw[index] = location.getYaw();
+		pitch[index] = location.getPitch();
+		indexes.put(entity, index);
+
+		int previousIndex = previous.indexOf(entity);
+		if (previousIndex != -1 && previous.worlds[previousIndex] == worlds[index]) {
+			double dx = x[index] - previous.x[previousIndex];
+			double dy = y[index] - previous.y[previousIndex];
+			double dz = z[index] - previous.z[previousIndex];
+			if (dx * dx + dy * dy + dz * dz <= MAX_SPEED_SQUARED) {
+				vx[index] = dx;
+				vy[index] = dy;
+				vz[index] = dz;
+			}
+		}
+	}
+
+	/**
+	 * Gets the range of indexes holding the players of a world.
+	 * @param world world of the players
+	 * @return range of indexes, or <code>null</code> if there is no player in this world
+	 */
+	@Nullable
+	WorldRange getPlayers(@NotNull World world) {
+		return worldRanges.get(world);
+	}
+
+	/**
+	 * Gets the index of an entity in this snapshot.
+	 * @param entity player or tracked entity
+	 * @return index of the entity in the arrays, or -1 if it is not part of this snapshot
+	 */
+	int indexOf(@Nullable Entity entity) {
+		if (entity == null)
+			return -1;
+		Integer index = indexes.get(entity);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Range of indexes, <code>from</code> inclusive and <code>to</code> exclusive.
+	 */
+	static record WorldRange(int from, int to) {}
+
+}
@@ -0,0 +1,143 @@
+package fr.skytasul.guardianbeam;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import java.util.*;
+
+/**
+ * Spreads the spawn of lasers over several ticks, so that a player arriving among many lasers does not receive all
+ * their packets at once.
+ * <p>
+ * Each player has a queue of lasers waiting to be shown, nearest first. Every tick, at most {@link #getBudget()} lasers
+ * of each queue are spawned. Lasers grouped in a region by {@link LaserJoinBundles} are spawned all at once with the
+ * cached packets of their region, which counts as one spawn. Lasers of the region missing from its cached packets, or
+ * which left it since they were queued, are then spawned on their own.
+ * <p>
+ * On region-threaded servers, each spawn runs on the thread owning the start location of its laser, or of the first
+ * laser of its region.
+ */
+final class LaserSpawnQueue {
+
+	private static final Map<Player, PriorityQueue<Request>> queues = new HashMap<>();
+	private static LaserScheduler.Task task;
+	private static volatile int budget = 8;
+
+	private LaserSpawnQueue() {}
+
+	static int getBudget() {
+		return budget;
+	}
+
+	static void setBudget(int budget) {
+		LaserSpawnQueue.budget = budget;
+	}
+
+	/**
+	 * Gets whether lasers must be spawned right away, without going through a queue.
+	 */
+	static boolean isUnlimited() {
+		return budget <= 0;
+	}
+
+	/**
+	 * Queues the spawn of a laser for a player. The laser will be asked to spawn with {@link Laser#spawnQueued(Player)}
+	 * if it still waits for this player at that time.
+	 * @param plugin plugin used to start the queue task if needed
+	 * @param player player who will see the laser
+	 * @param laser laser to spawn
+	 * @param distanceSquared squared distance between the player and the laser, used to spawn nearest lasers first
+	 */
+	static synchronized void enqueue(@NotNull Plugin plugin, @NotNull Player player, @NotNull Laser laser,
+			double distanceSquared) {
+		queues.computeIfAbsent(player, __ -> new PriorityQueue<>()).add(new Request(laser, distanceSquared));
+		if (task == null)
+			task = Laser.getScheduler().runTimer(plugin, null, LaserSpawnQueue::drain, 1L, 1L, true);
+	}
+
+	private static void drain() {
+		int maxSpawns = Math.max(budget, 1);
+		List<Player> players = new ArrayList<>();
+		List<Object> spawns = new ArrayList<>(); // lasers or region spawns
+		Map<LaserJoinBundles.Region, RegionSpawn> playerRegions = new HashMap<>();
+		synchronized (LaserSpawnQueue.class) {
+			for (Iterator<Map.Entry<Player, PriorityQueue<Request>>> iterator = queues.entrySet().iterator();
+					iterator.hasNext();) {
+				Map.Entry<Player, PriorityQueue<Request>> entry = iterator.next();
+				PriorityQueue<Request> queue = entry.getValue();
+				int playerSpawns = 0;
+				Request request;
+				while (playerSpawns < maxSpawns && (request = queue.poll()) != null) {
+					// the laser may have been stopped, or the player may have gone away since the request
+					if (!request.laser.isSpawnPending(entry.getKey()))
+						continue;
+					LaserJoinBundles.Region region = LaserJoinBundles.getRegion(request.laser);
+					if (region == null) {
+						players.add(entry.getKey());
+						spawns.add(request.laser);
+						playerSpawns++;
+						continue;
+					}
+					RegionSpawn regionSpawn = playerRegions.get(region);
+					if (regionSpawn == null) {
+						regionSpawn = new RegionSpawn(region, new ArrayList<>());
+						playerRegions.put(region, regionSpawn);
+						players.add(entry.getKey());
+						spawns.add(regionSpawn);
+						playerSpawns++;
+					}
+					// the laser will be spawned with the other lasers of its region
+					regionSpawn.lasers.add(request.laser);
+				}
+				playerRegions.clear();
+				if (queue.isEmpty())
+					iterator.remove();
+			}
+			if (queues.isEmpty()) {
+				task.cancel();
+				task = null;
+			}
+		}
+		LaserScheduler scheduler = Laser.getScheduler();
+		boolean regionThreaded = scheduler.isRegionThreaded();
+		for (int i = 0; i < players.size(); i++) {
+			Player player = players.get(i);
+			Object spawn = spawns.get(i);
+			if (regionThreaded) {
+				Laser laser = spawn instanceof Laser ? (Laser) spawn : ((RegionSpawn) spawn).lasers.get(0);
+				scheduler.run(laser.plugin, laser.start, () -> spawn(player, spawn));
+			}else {
+				spawn(player, spawn);
+			}
+		}
+	}
+
+	private static void spawn(Player player, Object spawn) {
+		if (spawn instanceof Laser laser) {
+			laser.spawnQueued(player);
+			return;
+		}
+		RegionSpawn regionSpawn = (RegionSpawn) spawn;
+		try {
+			regionSpawn.region.spawn(player);
+		}catch (ReflectiveOperationException e) {
+			e.printStackTrace();
+		}
+		// lasers missing from the cached packets of the region, or which left it, are still waiting
+		for (Laser laser : regionSpawn.lasers) {
+			laser.spawnQueued(player);
+		}
+	}
+
+	private static record RegionSpawn(@NotNull LaserJoinBundles.Region region, @NotNull List<Laser> lasers) {}
+
+	private static record Request(@NotNull Laser laser, double distanceSquared) implements Comparable<Request> {
+
+		@Override
+		public int compareTo(Request o) {
+			return Double.compare(distanceSquared, o.distanceSquared);
+		}
+
+	}
+
+}
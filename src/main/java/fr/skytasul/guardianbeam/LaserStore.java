@@ -0,0 +1,428 @@
+package fr.skytasul.guardianbeam;
+
+import fr.skytasul.guardianbeam.Laser.CrystalLaser;
+import fr.skytasul.guardianbeam.Laser.GuardianLaser;
+import fr.skytasul.guardianbeam.Laser.LaserType;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Persists long-lived lasers in a compact binary file so they can be brought back after a restart.
+ * <p>
+ * Lasers must be registered with {@link #track(Laser)}. A call to {@link #save()} writes every tracked laser which is
+ * still running, and {@link #restore(Plugin)} reads them back.
+ * <p>
+ * Restored lasers are not created right away: they stay in a lightweight pending state and are only materialized (and
+ * started) once a player comes within their visibility distance. This avoids a startup spike when thousands of
+ * decorative lasers are restored at once.
+ * <p>
+ * Note that the duration countdown of a restored laser starts over: this is mostly useful for infinite lasers
+ * (<code>duration = -1</code>).
+ */
+public class LaserStore {
+
+	private static final int MAGIC = 0x47424C53; // "GBLS"
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int FLAG_DURATION_TICKS = 1;
+	private static final int FLAG_END_ENTITY = 2;
+	private static final int FLAG_START_ENTITY = 4;
+
+	private final @NotNull Path file;
+
+	private final Set<Laser> lasers = ConcurrentHashMap.newKeySet();
+
+	private final Map<UUID, PendingWorld> pending = new HashMap<>();
+	private int pendingCount = 0;
+
+	private Plugin plugin;
+	private LaserScheduler.Task restoreTask;
+
+	/**
+	 * Creates a new store backed by a file.
+	 * @param file path of the binary file where lasers are saved
+	 */
+	public LaserStore(@NotNull Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Registers a laser to be written by the next calls to {@link #save()}.
+	 * <p>
+	 * The laser is automatically unregistered when it ends.
+	 * @param laser laser to register
+	 * @return the same laser instance
+	 */
+	public <T extends Laser> T track(@NotNull T laser) {
+		if (lasers.add(laser))
+			laser.executeEnd(() -> lasers.remove(laser));
+		return laser;
+	}
+
+	/**
+	 * Unregisters a laser so it won't be saved anymore.
+	 * @param laser laser to unregister
+	 */
+	public void untrack(@NotNull Laser laser) {
+		lasers.remove(laser);
+	}
+
+	/**
+	 * Gets the amount of restored lasers which have not been materialized yet.
+	 * @return amount of pending lasers
+	 */
+	public synchronized int getPendingCount() {
+		return pendingCount;
+	}
+
+	/**
+	 * Writes all tracked running lasers, as well as the restored lasers that are still pending, to the file.
+	 * <p>
+	 * The file is first written to a temporary file and then moved, so a crash during saving does not corrupt the
+	 * previous save.
+	 * @return amount of lasers written
+	 * @throws IOException if the file cannot be written
+	 */
+	public synchronized int save() throws IOException {
+		List<Entry> entries = new ArrayList<>(lasers.size() + pendingCount);
+		for (Laser laser : lasers) {
+			if (laser.isStarted())
+				entries.add(Entry.of(laser));
+		}
+		for (PendingWorld world : pending.values()) {
+			entries.addAll(world.entries);
+		}
+
+		Path parent = file.toAbsolutePath().getParent();
+		if (parent != null)
+			Files.createDirectories(parent);
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeByte(FORMAT_VERSION);
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				entry.write(out);
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+		return entries.size();
+	}
+
+	/**
+	 * Reads the lasers saved in the file and schedules them to be materialized once players come nearby.
+	 * <p>
+	 * Materialized lasers are started with the given plugin and automatically tracked by this store.
+	 * @param plugin plugin used to start the restored lasers
+	 * @return amount of lasers read from the file, 0 if there is no file
+	 * @throws IOException if the file cannot be read or is not a valid laser file
+	 */
+	public synchronized int restore(@NotNull Plugin plugin) throws IOException {
+		this.plugin = plugin;
+		if (!Files.exists(file))
+			return 0;
+
+		int count;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("File " + file + " is not a GuardianBeam laser file");
+			int format = in.readUnsignedByte();
+			if (format != FORMAT_VERSION)
+				throw new IOException("Unsupported laser file format " + format);
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				addPending(Entry.read(in));
+			}
+		}
+
+		if (restoreTask == null && pendingCount != 0) {
+			LaserSnapshot.add(plugin, this);
+			restoreTask = Laser.getScheduler().runTimer(plugin, null, this::materializeNearby, 1L, 20L, false);
+		}
+		return count;
+	}
+
+	/**
+	 * Stops materializing pending lasers. They will still be written by {@link #save()}.
+	 */
+	public synchronized void cancelRestore() {
+		if (restoreTask != null) {
+			restoreTask.cancel();
+			restoreTask = null;
+			LaserSnapshot.remove(this);
+		}
+	}
+
+	private void addPending(Entry entry) {
+		PendingWorld world = pending.computeIfAbsent(entry.world, __ -> new PendingWorld());
+		world.add(entry);
+		pendingCount++;
+	}
+
+	/**
+	 * Materializes the pending lasers close to players, whose positions are read from the {@link LaserSnapshot}. On
+	 * region-threaded servers, each laser is created on the thread owning its start location.
+	 */
+	private synchronized void materializeNearby() {
+		LaserSnapshot snapshot = LaserSnapshot.current();
+		LaserScheduler scheduler = Laser.getScheduler();
+		for (Iterator<Map.Entry<UUID, PendingWorld>> iterator = pending.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<UUID, PendingWorld> worldEntry = iterator.next();
+			World world = Bukkit.getWorld(worldEntry.getKey());
+			if (world == null)
+				continue;
+			LaserSnapshot.WorldRange players = snapshot.getPlayers(world);
+			if (players == null)
+				continue;
+
+			PendingWorld pendingWorld = worldEntry.getValue();
+			List<Entry> toMaterialize = pendingWorld.collectNearby(snapshot, players);
+			for (Entry entry : toMaterialize) {
+				pendingWorld.remove(entry);
+				pendingCount--;
+				if (scheduler.isRegionThreaded())
+					scheduler.run(plugin, new Location(world, entry.startX, entry.startY, entry.startZ),
+							() -> materialize(world, entry));
+				else
+					materialize(world, entry);
+			}
+			if (pendingWorld.entries.isEmpty())
+				iterator.remove();
+		}
+		if (pendingCount == 0)
+			cancelRestore();
+	}
+
+	private void materialize(World world, Entry entry) {
+		Location start = new Location(world, entry.startX, entry.startY, entry.startZ, entry.startYaw, entry.startPitch);
+		Location end = new Location(world, entry.endX, entry.endY, entry.endZ);
+		try {
+			Laser laser;
+			Entity endEntity = entry.endEntity == null ? null : Bukkit.getEntity(entry.endEntity);
+			if (entry.type == LaserType.GUARDIAN && endEntity instanceof LivingEntity living
+					&& endEntity.getWorld() == world) {
+				laser = new GuardianLaser(start, living, entry.duration, entry.distance);
+			} else {
+				// if the entity is not loaded anymore, we fall back to its last known location
+				laser = entry.type.create(start, end, entry.duration, entry.distance);
+				if (laser instanceof CrystalLaser crystal && endEntity != null && endEntity.getWorld() == world)
+					crystal.attachEndEntity(endEntity);
+			}
+			Entity startEntity = entry.startEntity == null ? null : Bukkit.getEntity(entry.startEntity);
+			if (laser instanceof GuardianLaser guardian && startEntity != null && startEntity.getWorld() == world) {
+				try {
+					guardian.attachStartEntity(startEntity);
+				}catch (UnsupportedOperationException ex) {
+					// the server cannot make the guardian ride the entity: the laser starts from the saved location
+				}
+			}
+			if (entry.durationInTicks)
+				laser.durationInTicks();
+			track(laser).start(plugin);
+		} catch (ReflectiveOperationException ex) {
+			plugin.getLogger().log(Level.SEVERE, "Failed to restore a laser", ex);
+		}
+	}
+
+	/**
+	 * Pending entries of a world, indexed by the chunks of their start and end locations.
+	 */
+	private static class PendingWorld {
+		private final Set<Entry> entries = new LinkedHashSet<>();
+		private final Map<Long, List<Entry>> byChunk = new HashMap<>();
+		private final List<Entry> infinite = new ArrayList<>();
+		private int maxDistance = 0;
+
+		void add(Entry entry) {
+			entries.add(entry);
+			if (entry.distance < 0) {
+				infinite.add(entry);
+				return;
+			}
+			maxDistance = Math.max(maxDistance, entry.distance);
+			long startKey = LaserChunkTracker.chunkKey(entry.startChunkX(), entry.startChunkZ());
+			long endKey = LaserChunkTracker.chunkKey(entry.endChunkX(), entry.endChunkZ());
+			byChunk.computeIfAbsent(startKey, __ -> new ArrayList<>(2)).add(entry);
+			if (endKey != startKey)
+				byChunk.computeIfAbsent(endKey, __ -> new ArrayList<>(2)).add(entry);
+		}
+
+		void remove(Entry entry) {
+			entries.remove(entry);
+			if (entry.distance < 0) {
+				infinite.remove(entry);
+				return;
+			}
+			removeFromChunk(LaserChunkTracker.chunkKey(entry.startChunkX(), entry.startChunkZ()), entry);
+			removeFromChunk(LaserChunkTracker.chunkKey(entry.endChunkX(), entry.endChunkZ()), entry);
+		}
+
+		private void removeFromChunk(long key, Entry entry) {
+			List<Entry> list = byChunk.get(key);
+			if (list != null && list.remove(entry) && list.isEmpty())
+				byChunk.remove(key);
+		}
+
+		List<Entry> collectNearby(LaserSnapshot snapshot, LaserSnapshot.WorldRange players) {
+			Set<Entry> found = new LinkedHashSet<>(infinite);
+			if (!byChunk.isEmpty()) {
+				int radius = (maxDistance >> 4) + 1;
+				for (int i = players.from(); i < players.to(); i++) {
+					double x = snapshot.x[i], y = snapshot.y[i], z = snapshot.z[i];
+					int chunkX = Location.locToBlock(x) >> 4;
+					int chunkZ = Location.locToBlock(z) >> 4;
+					for (int cx = chunkX - radius; cx <= chunkX + radius; cx++) {
+						for (int cz = chunkZ - radius; cz <= chunkZ + radius; cz++) {
+							List<Entry> list = byChunk.get(LaserChunkTracker.chunkKey(cx, cz));
+							if (list == null)
+								continue;
+							for (Entry entry : list) {
+								if (entry.isCloseEnough(x, y, z))
+									found.add(entry);
+							}
+						}
+					}
+				}
+			}
+			return new ArrayList<>(found);
+		}
+	}
+
+	private static class Entry {
+		private final LaserType type;
+		private final UUID world;
+		private final double startX, startY, startZ;
+		private final float startYaw, startPitch;
+		private final double endX, endY, endZ;
+		private final int duration;
+		private final int distance;
+		private final boolean durationInTicks;
+		private final @Nullable UUID endEntity;
+		private final @Nullable UUID startEntity;
+
+		private Entry(LaserType type, UUID world, double startX, double startY, double startZ, float startYaw,
+				float startPitch, double endX, double endY, double endZ, int duration, int distance,
+				boolean durationInTicks, @Nullable UUID endEntity, @Nullable UUID startEntity) {
+			this.type = type;
+			this.world = world;
+			this.startX = startX;
+			this.startY = startY;
+			this.startZ = startZ;
+			this.startYaw = startYaw;
+			this.startPitch = startPitch;
+			this.endX = endX;
+			this.endY = endY;
+			this.endZ = endZ;
+			this.duration = duration;
+			this.distance = distance;
+			this.durationInTicks = durationInTicks;
+			this.endEntity = endEntity;
+			this.startEntity = startEntity;
+		}
+
+		static Entry of(Laser laser) {
+			Location start = laser.getStart();
+			Location end = laser.getEnd();
+			Entity endEntity = null, startEntity = null;
+			if (laser instanceof GuardianLaser guardian) {
+				endEntity = guardian.getEndEntity();
+				startEntity = guardian.getStartEntity();
+			}else if (laser instanceof CrystalLaser crystal)
+				endEntity = crystal.getEndEntity();
+			return new Entry(laser.getLaserType(), start.getWorld().getUID(), start.getX(), start.getY(), start.getZ(),
+					start.getYaw(), start.getPitch(), end.getX(), end.getY(), end.getZ(), laser.getDuration(),
+					laser.getDistance(), laser.isDurationInTicks(), endEntity == null ? null : endEntity.getUniqueId(),
+					startEntity == null ? null : startEntity.getUniqueId());
+		}
+
+		int startChunkX() {
+			return Location.locToBlock(startX) >> 4;
+		}
+
+		int startChunkZ() {
+			return Location.locToBlock(startZ) >> 4;
+		}
+
+		int endChunkX() {
+			return Location.locToBlock(endX) >> 4;
+		}
+
+		int endChunkZ() {
+			return Location.locToBlock(endZ) >> 4;
+		}
+
+		boolean isCloseEnough(double x, double y, double z) {
+			double distanceSquared = (double) distance * distance;
+			return squared(startX - x, startY - y, startZ - z) <= distanceSquared
+					|| squared(endX - x, endY - y, endZ - z) <= distanceSquared;
+		}
+
+		private static double squared(double x, double y, double z) {
+			return x * x + y * y + z * z;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeByte(type.ordinal());
+			out.writeLong(world.getMostSignificantBits());
+			out.writeLong(world.getLeastSignificantBits());
+			out.writeDouble(startX);
+			out.writeDouble(startY);
+			out.writeDouble(startZ);
+			out.writeFloat(startYaw);
+			out.writeFloat(startPitch);
+			out.writeDouble(endX);
+			out.writeDouble(endY);
+			out.writeDouble(endZ);
+			out.writeInt(duration);
+			out.writeInt(distance);
+			int flags = 0;
+			if (durationInTicks)
+				flags |= FLAG_DURATION_TICKS;
+			if (endEntity != null)
+				flags |= FLAG_END_ENTITY;
+			if (startEntity != null)
+				flags |= FLAG_START_ENTITY;
+			out.writeByte(flags);
+			if (endEntity != null) {
+				out.writeLong(endEntity.getMostSignificantBits());
+				out.writeLong(endEntity.getLeastSignificantBits());
+			}
+			if (startEntity != null) {
+				out.writeLong(startEntity.getMostSignificantBits());
+				out.writeLong(startEntity.getLeastSignificantBits());
+			}
+		}
+
+		static Entry read(DataInputStream in) throws IOException {
+			int typeOrdinal = in.readUnsignedByte();
+			LaserType[] types = LaserType.values();
+			if (typeOrdinal >= types.length)
+				throw new IOException("Unknown laser type " + typeOrdinal);
+			UUID world = new UUID(in.readLong(), in.readLong());
+			double startX = in.readDouble(), startY = in.readDouble(), startZ = in.readDouble();
+			float startYaw = in.readFloat(), startPitch = in.readFloat();
+			double endX = in.readDouble(), endY = in.readDouble(), endZ = in.readDouble();
+			int duration = in.readInt();
+			int distance = in.readInt();
+			int flags = in.readUnsignedByte();
+			UUID endEntity = (flags & FLAG_END_ENTITY) != 0 ? new UUID(in.readLong(), in.readLong()) : null;
+			UUID startEntity = (flags & FLAG_START_ENTITY) != 0 ? new UUID(in.readLong(), in.readLong()) : null;
+			return new Entry(types[typeOrdinal], world, startX, startY, startZ, startYaw, startPitch, endX, endY, endZ,
+					duration, distance, (flags & FLAG_DURATION_TICKS) != 0, endEntity, startEntity);
+		}
+	}
+
+}
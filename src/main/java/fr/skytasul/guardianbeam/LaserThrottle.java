@@ -0,0 +1,184 @@
+package fr.skytasul.guardianbeam;
+
+import org.bukkit.Bukkit;
+import org.jetbrains.annotations.NotNull;
+import java.lang.reflect.Method;
+
+/**
+ * Lowers the pace of laser work while the server is overloaded.
+ * <p>
+ * The tick time is sampled every tick: it is the average MSPT when the server measures it (Paper and its forks), and
+ * otherwise the time between two ticks, which never goes under 50 ms. When it rises above the thresholds, lasers
+ * update their viewers less often, send fewer animation steps and defer color changes. Once it stays under the
+ * thresholds for {@link #RECOVERY_TICKS} ticks, the previous level is restored.
+ */
+public final class LaserThrottle {
+
+	/**
+	 * Ticks the tick time must stay under the threshold of the current level before lowering it.
+	 */
+	public static final int RECOVERY_TICKS = 100;
+
+	private static volatile boolean enabled = true;
+	private static volatile double reducedThreshold = 52;
+	private static volatile double minimalThreshold = 70;
+
+	private static volatile Level level = Level.NORMAL;
+	private static volatile double tickTime = 50;
+
+	private static long lastTickNanos;
+	private static int calmTicks;
+	private static Method averageTickTime;
+	private static boolean averageTickTimeLoaded;
+
+	private LaserThrottle() {}
+
+	/**
+	 * Samples the tick time and updates the throttle level. Must be called once per tick.
+	 */
+	static void tick() {
+		double sample = sampleTickTime();
+		if (Double.isNaN(sample))
+			return;
+		tickTime = sample;
+		if (!enabled) {
+			level = Level.NORMAL;
+			return;
+		}
+
+		Level target = sample > minimalThreshold ? Level.MINIMAL : sample > reducedThreshold ? Level.REDUCED : Level.NORMAL;
+		Level current = level;
+		if (target.ordinal() > current.ordinal()) {
+			level = target;
+			calmTicks = 0;
+		}else if (target.ordinal() < current.ordinal()) {
+			if (++calmTicks >= RECOVERY_TICKS) {
+				level = Level.values()[current.ordinal() - 1];
+				calmTicks = 0;
+			}
+		}else {
+			calmTicks = 0;
+		}
+	}
+
+	private static double sampleTickTime() {
+		if (!averageTickTimeLoaded) {
+			averageTickTimeLoaded = true;
+			try {
+				averageTickTime = Bukkit.getServer().getClass().getMethod("getAverageTickTime");
+			}catch (NoSuchMethodException ex) {
+				averageTickTime = null;
+			}
+		}
+		if (averageTickTime != null) {
+			try {
+				return (double) averageTickTime.invoke(Bukkit.getServer());
+			}catch (ReflectiveOperationException | RuntimeException ex) {
+				averageTickTime = null; // not supported by this server, for instance on region-threaded ones
+			}
+		}
+
+		long now = System.nanoTime();
+		long last = lastTickNanos;
+		lastTickNanos = now;
+		if (last == 0)
+			return Double.NaN;
+		double interval = (now - last) / 1_000_000D;
+		return tickTime * 0.95 + interval * 0.05;
+	}
+
+	/**
+	 * Gets the current throttle level.
+	 * @return level applied by all lasers
+	 */
+	public static @NotNull Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * Gets the last sampled tick time.
+	 * @return tick time in milliseconds
+	 */
+	public static double getTickTime() {
+		return tickTime;
+	}
+
+	/**
+	 * Sets the tick times above which lasers are throttled.
+	 * @param reduced tick time, in milliseconds, above which the {@link Level#REDUCED} level is applied (52 by default)
+	 * @param minimal tick time, in milliseconds, above which the {@link Level#MINIMAL} level is applied (70 by default)
+	 */
+	public static void setThresholds(double reduced, double minimal) {
+		if (reduced > minimal)
+			throw new IllegalArgumentException("The reduced threshold must not be above the minimal one");
+		reducedThreshold = reduced;
+		minimalThreshold = minimal;
+	}
+
+	public static double getReducedThreshold() {
+		return reducedThreshold;
+	}
+
+	public static double getMinimalThreshold() {
+		return minimalThreshold;
+	}
+
+	/**
+	 * Enables or disables the throttling. When disabled, lasers always run at {@link Level#NORMAL}.
+	 * @param enabled <code>true</code> to throttle lasers under load (default)
+	 */
+	public static void setEnabled(boolean enabled) {
+		LaserThrottle.enabled = enabled;
+		if (!enabled)
+			level = Level.NORMAL;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Pace of the laser work.
+	 */
+	public enum Level {
+		/** Full fidelity */
+		NORMAL(1, 1, false),
+		/** Viewers updated twice less often, one animation step out of two sent, color changes deferred */
+		REDUCED(2, 2, true),
+		/** Viewers updated four times less often, one animation step out of four sent, color changes deferred */
+		MINIMAL(4, 4, true);
+
+		private final int visibilityIntervalFactor;
+		private final int animationStep;
+		private final boolean deferMetadata;
+
+		private Level(int visibilityIntervalFactor, int animationStep, boolean deferMetadata) {
+			this.visibilityIntervalFactor = visibilityIntervalFactor;
+			this.animationStep = animationStep;
+			this.deferMetadata = deferMetadata;
+		}
+
+		/**
+		 * Gets by how much the interval between two visibility updates is multiplied.
+		 */
+		public int getVisibilityIntervalFactor() {
+			return visibilityIntervalFactor;
+		}
+
+		/**
+		 * Gets every how many ticks a smooth move sends the position of the laser.
+		 */
+		public int getAnimationStep() {
+			return animationStep;
+		}
+
+		/**
+		 * Gets whether color changes are sent on the next visibility update instead of right away.
+		 */
+		public boolean isDeferringMetadata() {
+			return deferMetadata;
+		}
+
+	}
+
+}
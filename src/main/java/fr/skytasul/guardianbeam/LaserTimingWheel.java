@@ -0,0 +1,88 @@
+package fr.skytasul.guardianbeam;
+
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import java.util.*;
+
+/**
+ * Ends lasers once their duration is over, from a single task shared by all lasers.
+ * <p>
+ * Lasers are hashed by the tick they expire at into a wheel of {@link #SLOTS} slots. Every tick, the wheel advances by
+ * one slot and expires the lasers of this slot whose tick has come, the others having more turns to wait. Scheduling
+ * and cancelling hence cost the same whatever the duration, and no laser needs a task to count its duration down.
+ * <p>
+ * Lasers expiring during the same tick are stopped together by {@link Laser#expire(List)}.
+ */
+final class LaserTimingWheel {
+
+	/** Must be a power of two */
+	private static final int SLOTS = 512;
+
+	private static final List<Set<Laser>> wheel = new ArrayList<>(SLOTS);
+	private static final Map<Laser, Long> deadlines = new HashMap<>();
+	private static long currentTick;
+	private static LaserScheduler.Task task;
+
+	static {
+		for (int i = 0; i < SLOTS; i++) {
+			wheel.add(new HashSet<>());
+		}
+	}
+
+	private LaserTimingWheel() {}
+
+	/**
+	 * Schedules the end of a laser, replacing its previous schedule if any.
+	 * @param plugin plugin used to start the wheel task if needed
+	 * @param laser laser to end
+	 * @param ticks ticks before the end of the laser, at least one tick is waited
+	 */
+	static synchronized void schedule(@NotNull Plugin plugin, @NotNull Laser laser, int ticks) {
+		long deadline = currentTick + Math.max(ticks, 1);
+		Long previous = deadlines.put(laser, deadline);
+		if (previous != null)
+			getSlot(previous).remove(laser);
+		getSlot(deadline).add(laser);
+		if (task == null)
+			task = Laser.getScheduler().runTimer(plugin, null, LaserTimingWheel::advance, 1L, 1L, true);
+	}
+
+	/**
+	 * Takes a laser out of the wheel.
+	 * @param laser laser which will not end anymore
+	 * @return ticks which were remaining before its end, or -1 if it was not scheduled
+	 */
+	static synchronized int cancel(@NotNull Laser laser) {
+		Long deadline = deadlines.remove(laser);
+		if (deadline == null)
+			return -1;
+		getSlot(deadline).remove(laser);
+		return (int) (deadline - currentTick);
+	}
+
+	private static Set<Laser> getSlot(long tick) {
+		return wheel.get((int) tick & (SLOTS - 1));
+	}
+
+	private static void advance() {
+		List<Laser> expired = new ArrayList<>();
+		synchronized (LaserTimingWheel.class) {
+			currentTick++;
+			for (Iterator<Laser> iterator = getSlot(currentTick).iterator(); iterator.hasNext();) {
+				Laser laser = iterator.next();
+				if (deadlines.get(laser) <= currentTick) {
+					iterator.remove();
+					deadlines.remove(laser);
+					expired.add(laser);
+				}
+			}
+			if (deadlines.isEmpty()) {
+				task.cancel();
+				task = null;
+			}
+		}
+		if (!expired.isEmpty())
+			Laser.expire(expired);
+	}
+
+}
@@ -0,0 +1,100 @@
+package fr.skytasul.guardianbeam;
+
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import java.util.*;
+
+/**
+ * Runs the periodic tasks of all lasers from a single shared task, on servers where one thread owns every location.
+ * <p>
+ * Tasks are spread over as many buckets as ticks in their period. Every tick, the tasks of the next bucket are run, so
+ * each task still runs once per period but no scheduler task is created per laser. New tasks are put in the bucket run
+ * on the next tick.
+ * <p>
+ * On region-threaded servers, lasers keep their own task, which must run on the region owning their start.
+ */
+final class LaserVisibilityLoop {
+
+	private static List<Set<Entry>> buckets;
+	private static int size;
+	private static int nextBucket;
+	private static LaserScheduler.Task task;
+
+	private LaserVisibilityLoop() {}
+
+	/**
+	 * Schedules a task to run once per period from the shared loop.
+	 * @param plugin plugin used to start the loop task if needed
+	 * @param runnable task to run
+	 * @param period ticks between two runs, which must be the same for all tasks
+	 * @return handle to cancel the task
+	 */
+	static synchronized @NotNull LaserScheduler.Task schedule(@NotNull Plugin plugin, @NotNull Runnable runnable,
+			long period) {
+		if (buckets == null || buckets.size() != period) {
+			if (size != 0)
+				throw new IllegalStateException("Tasks with another period are running");
+			buckets = new ArrayList<>((int) period);
+			for (int i = 0; i < period; i++) {
+				buckets.add(new LinkedHashSet<>());
+			}
+			nextBucket = 0;
+		}
+		Entry entry = new Entry(runnable, buckets.get(nextBucket));
+		entry.bucket.add(entry);
+		size++;
+		if (task == null)
+			task = Laser.getScheduler().runTimer(plugin, null, LaserVisibilityLoop::run, 1L, 1L, true);
+		return entry;
+	}
+
+	private static void run() {
+		List<Entry> due;
+		synchronized (LaserVisibilityLoop.class) {
+			due = new ArrayList<>(buckets.get(nextBucket));
+			nextBucket = (nextBucket + 1) % buckets.size();
+		}
+		for (Entry entry : due) {
+			if (entry.cancelled)
+				continue;
+			try {
+				entry.runnable.run();
+			}catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static final class Entry implements LaserScheduler.Task {
+
+		private final Runnable runnable;
+		private final Set<Entry> bucket;
+		private volatile boolean cancelled;
+
+		private Entry(Runnable runnable, Set<Entry> bucket) {
+			this.runnable = runnable;
+			this.bucket = bucket;
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (LaserVisibilityLoop.class) {
+				if (cancelled)
+					return;
+				cancelled = true;
+				bucket.remove(this);
+				if (--size == 0) {
+					task.cancel();
+					task = null;
+				}
+			}
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+	}
+
+}
@@ -1,6 +1,8 @@
 package fr.skytasul.guardianbeam;
 
 import fr.skytasul.reflection.Version;
+import fr.skytasul.reflection.mappings.Mappings;
+import fr.skytasul.reflection.mappings.files.MappingFileReader;
 import fr.skytasul.reflection.mappings.files.ProguardMapping;
 import fr.skytasul.reflection.shrieker.CustomMappings;
 import fr.skytasul.reflection.shrieker.MappingsShrieker;
@@ -8,52 +10,235 @@ import fr.skytasul.reflection.shrieker.PipeMappings;
 import fr.skytasul.reflection.shrieker.minecraft.MinecraftMappingsProvider;
 import org.jetbrains.annotations.NotNull;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 public class GuardianBeamMappingsGenerator {
 
 	private static final @NotNull Logger LOGGER = Logger.getLogger("GuardianBeam-CodeGen");
 
+	/**
+	 * Prefix of the classes whose bytecode determines the content of the shrieked mappings: the reflection code and all
+	 * its nested classes. If any of them changes, the cached mappings are not reused.
+	 */
+	private static final @NotNull String HASHED_CLASSES_PREFIX = "Laser$Packets";
+
+	/**
+	 * Classes of the libraries which read and shriek the mappings. If their version changes, the cached mappings are not
+	 * reused.
+	 */
+	private static final @NotNull Class<?>[] HASHED_LIBRARIES = {MappingsShrieker.class, MappingFileReader.class};
+
+	/**
+	 * Lock held while the reflection code is run against mappings, as it sets the static fields of
+	 * {@link Laser.Packets}.
+	 */
+	private static final @NotNull Object REFLECTION_LOCK = new Object();
+
 	private final @NotNull Path dataFolder;
+	private final @NotNull Path cacheFolder;
 	private final @NotNull MinecraftMappingsProvider mappingsProvider;
 
 	public GuardianBeamMappingsGenerator(@NotNull Path dataPath, @NotNull Path tmpPath) throws IOException {
 		this.dataFolder = dataPath;
+		this.cacheFolder = tmpPath.resolve("shrieked");
 		this.mappingsProvider = new MinecraftMappingsProvider(tmpPath);
 	}
 
 	public void start() throws MappingGenerationException, IOException {
-		var spigotShrieker = new MappingsShrieker(new ProguardMapping(true), Laser.Packets::loadReflection);
-
-		for (var version : Version.parseArray(
+		var versions = Version.parseArray(
 				"1.17", "1.17.1",
 				"1.18", "1.18.1", "1.18.2",
 				"1.19", "1.19.1", "1.19.2", "1.19.3", "1.19.4",
 				"1.20.1", "1.20.2", "1.20.4", "1.20.6",
-				"1.21", "1.21.1", "1.21.3", "1.21.4", "1.21.5", "1.21.6", "1.21.7")) {
+				"1.21", "1.21.1", "1.21.3", "1.21.4", "1.21.5", "1.21.6", "1.21.7");
+
+		Files.createDirectories(cacheFolder);
+		String hash = computeReflectionHash();
+
+		List<Version> missingVersions = new ArrayList<>();
+		for (var version : versions) {
+			if (Files.isRegularFile(getCachedFile(version, hash)))
+				LOGGER.info("Using cached mappings for " + version);
+			else
+				missingVersions.add(version);
+		}
+
+		if (!missingVersions.isEmpty()) {
+			var pool = new ForkJoinPool(Math.min(missingVersions.size(), Runtime.getRuntime().availableProcessors()));
 			try {
-				LOGGER.info("Downloading mappings for " + version + "...");
-				var minecraftMappings = mappingsProvider.loadMinecraftMappings(version);
-				var spigotMappings = new CustomMappings(mappingsProvider.loadSpigotMappings(version));
-				spigotMappings.getClassFromMapped("net.minecraft.server.network.PlayerConnection").inheritsFrom(
-						spigotMappings.getClassFromMapped("net.minecraft.server.network.ServerPlayerConnection"));
-				spigotMappings.getClassFromMapped("net.minecraft.world.scores.ScoreboardTeam").inheritsFrom(
-						spigotMappings.getClassFromMapped("net.minecraft.world.scores.ScoreboardTeamBase"));
-				LOGGER.info("Shrieking mappings...");
-				spigotShrieker.registerVersionMappings(version, new PipeMappings(minecraftMappings, spigotMappings));
-			} catch (ReflectiveOperationException ex) {
-				throw new MappingGenerationException(version, ex);
+				List<Future<?>> tasks = new ArrayList<>(missingVersions.size());
+				for (var version : missingVersions) {
+					tasks.add(pool.submit(() -> {
+						shriekVersion(version, hash);
+						return null;
+					}));
+				}
+				for (int i = 0; i < tasks.size(); i++) {
+					try {
+						tasks.get(i).get();
+					} catch (ExecutionException ex) {
+						throw new MappingGenerationException(missingVersions.get(i), ex.getCause());
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new MappingGenerationException(missingVersions.get(i), ex);
+					}
+				}
+			} finally {
+				pool.shutdown();
 			}
 		}
 
 		LOGGER.info("\n\nWriting mappings files...");
+		// the cached mappings only contain what the reflection needs, hence shrieking them again is immediate
+		var spigotShrieker = new MappingsShrieker(new ProguardMapping(true), Laser.Packets::loadReflection);
+		for (var version : versions) {
+			try {
+				spigotShrieker.registerVersionMappings(version, readCachedMappings(version, hash));
+			} catch (ReflectiveOperationException ex) {
+				throw new MappingGenerationException(version, ex);
+			}
+		}
 		Files.createDirectories(dataFolder);
 		spigotShrieker.writeMappingsFile(dataFolder.resolve("spigot.txt"));
 		LOGGER.info("\nDone.");
 	}
 
+	/**
+	 * Downloads the mappings of a version, shrieks them and writes the result in the cache. Older cached mappings of
+	 * this version are deleted.
+	 * <p>
+	 * This is called concurrently for different versions. Only the shrieking step, which runs the reflection code, is
+	 * done one version at a time.
+	 */
+	private void shriekVersion(@NotNull Version version, @NotNull String hash)
+			throws IOException, ReflectiveOperationException {
+		LOGGER.info("Downloading mappings for " + version + "...");
+		var minecraftMappings = mappingsProvider.loadMinecraftMappings(version);
+		var spigotMappings = new CustomMappings(mappingsProvider.loadSpigotMappings(version));
+		spigotMappings.getClassFromMapped("net.minecraft.server.network.PlayerConnection").inheritsFrom(
+				spigotMappings.getClassFromMapped("net.minecraft.server.network.ServerPlayerConnection"));
+		spigotMappings.getClassFromMapped("net.minecraft.world.scores.ScoreboardTeam").inheritsFrom(
+				spigotMappings.getClassFromMapped("net.minecraft.world.scores.ScoreboardTeamBase"));
+
+		LOGGER.info("Shrieking mappings for " + version + "...");
+		var versionShrieker = new MappingsShrieker(new ProguardMapping(true), Laser.Packets::loadReflection);
+		synchronized (REFLECTION_LOCK) {
+			versionShrieker.registerVersionMappings(version, new PipeMappings(minecraftMappings, spigotMappings));
+		}
+
+		Path cachedFile = getCachedFile(version, hash);
+		Path tmpFile = cachedFile.resolveSibling(cachedFile.getFileName() + ".tmp");
+		versionShrieker.writeMappingsFile(tmpFile);
+		Files.move(tmpFile, cachedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		String prefix = version + "-";
+		try (Stream<Path> files = Files.list(cacheFolder)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				String name = file.getFileName().toString();
+				if (name.startsWith(prefix) && !file.equals(cachedFile))
+					Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	private @NotNull Mappings readCachedMappings(@NotNull Version version, @NotNull String hash) throws IOException {
+		var reader = new MappingFileReader(new ProguardMapping(false), Files.readAllLines(getCachedFile(version, hash)));
+		reader.readAvailableVersions();
+		reader.parseMappings();
+		return reader.getParsedMappings(version);
+	}
+
+	private @NotNull Path getCachedFile(@NotNull Version version, @NotNull String hash) {
+		return cacheFolder.resolve(version + "-" + hash + ".txt");
+	}
+
+	private static @NotNull String computeReflectionHash() throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new UnsupportedOperationException(ex);
+		}
+		Path location = getCodeSource(Laser.class);
+		if (Files.isDirectory(location)) {
+			hashClassFiles(digest, location);
+		} else {
+			try (FileSystem jar = FileSystems.newFileSystem(location)) {
+				hashClassFiles(digest, jar.getPath("/"));
+			}
+		}
+		try (InputStream stream = GuardianBeamMappingsGenerator.class
+				.getResourceAsStream(GuardianBeamMappingsGenerator.class.getSimpleName() + ".class")) {
+			if (stream == null)
+				throw new IOException("Cannot find bytecode of " + GuardianBeamMappingsGenerator.class.getName());
+			digest.update(stream.readAllBytes());
+		}
+		for (Class<?> library : HASHED_LIBRARIES) {
+			digest.update(getLibraryVersion(library).getBytes(StandardCharsets.UTF_8));
+		}
+		return HexFormat.of().formatHex(digest.digest(), 0, 8);
+	}
+
+	/**
+	 * Hashes the bytecode of the reflection code, sorted by file name so that the hash does not depend on the file
+	 * system order.
+	 */
+	private static void hashClassFiles(@NotNull MessageDigest digest, @NotNull Path root) throws IOException {
+		Path packageFolder = root.resolve(Laser.class.getPackageName().replace('.', '/'));
+		List<Path> files;
+		try (Stream<Path> stream = Files.list(packageFolder)) {
+			files = stream.filter(file -> {
+				String name = file.getFileName().toString();
+				return name.startsWith(HASHED_CLASSES_PREFIX) && name.endsWith(".class");
+			}).sorted().toList();
+		}
+		if (files.isEmpty())
+			throw new IOException("Cannot find bytecode of " + Laser.Packets.class.getName());
+		for (Path file : files) {
+			digest.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+			digest.update(Files.readAllBytes(file));
+		}
+	}
+
+	/**
+	 * Gets the version of a library, from its manifest or else from the name of its jar.
+	 */
+	private static @NotNull String getLibraryVersion(@NotNull Class<?> library) throws IOException {
+		String version = library.getPackage().getImplementationVersion();
+		if (version == null)
+			version = getCodeSource(library).getFileName().toString();
+		return library.getPackageName() + ":" + version;
+	}
+
+	private static @NotNull Path getCodeSource(@NotNull Class<?> clazz) throws IOException {
+		CodeSource source = clazz.getProtectionDomain().getCodeSource();
+		if (source == null)
+			throw new IOException("Cannot find the location of " + clazz.getName());
+		try {
+			return Path.of(source.getLocation().toURI());
+		} catch (URISyntaxException ex) {
+			throw new IOException("Cannot find the location of " + clazz.getName(), ex);
+		}
+	}
+
 	public static void main(String[] args) throws MappingGenerationException, IOException {
 		var mappingsPath = Path.of("src", "main", "resources", "fr", "skytasul", "guardianbeam", "mappings");
 		var tmpPath = Path.of("rawMappings");
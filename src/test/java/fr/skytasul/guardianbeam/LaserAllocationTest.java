@@ -0,0 +1,198 @@
+package fr.skytasul.guardianbeam;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+import fr.skytasul.guardianbeam.Laser.CrystalLaser;
+import fr.skytasul.guardianbeam.Laser.GuardianLaser;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Measures the bytes allocated by the hot paths of the lasers on the stand-in server, and fails when one of them
+ * allocates more than its recorded budget.
+ * <p>
+ * Budgets are per call, in steady state: the lasers are already shown to the players, so that only the work done on
+ * every pass or move is measured. They leave some headroom over the measured values, so that only a new allocation in
+ * a hot path makes them fail. When a change legitimately allocates more, the budgets of the {@link Subject} are raised
+ * in the same change, with the values logged by this test.
+ */
+class LaserAllocationTest {
+
+	private static final Logger LOGGER = Logger.getLogger(LaserAllocationTest.class.getName());
+
+	private static final int LASERS = 20;
+	private static final int PLAYERS = 10;
+	private static final int WARMUP_RUNS = 2_000;
+	private static final int MEASURED_RUNS = 2_000;
+
+	/**
+	 * Lasers whose allocations are measured, with their budgets in bytes per call. The visibility pass and
+	 * {@link Laser#moveFakeEntity(Location, Object)} are implemented by {@link Laser}, but the packets they send depend
+	 * on the type of laser.
+	 */
+	enum Subject {
+		GUARDIAN(512, 1280, 384) {
+			@Override
+			Laser create(Location start, Location end) throws ReflectiveOperationException {
+				return new GuardianLaser(start, end, -1, 32);
+			}
+
+			@Override
+			Object createFakeEntity(Location location) throws ReflectiveOperationException {
+				return Laser.Packets.createGuardian(location, UUID.randomUUID(), Laser.Packets.generateEID());
+			}
+		},
+		CRYSTAL(512, 1280, 192) {
+			@Override
+			Laser create(Location start, Location end) throws ReflectiveOperationException {
+				return new CrystalLaser(start, end, -1, 32);
+			}
+
+			@Override
+			Object createFakeEntity(Location location) throws ReflectiveOperationException {
+				return Laser.Packets.createCrystal(location, UUID.randomUUID(), Laser.Packets.generateEID());
+			}
+		};
+
+		/** Bytes allocated by one laser for one visibility pass over the {@value LaserAllocationTest#PLAYERS} players */
+		private final long visibilityPassBudget;
+		/** Bytes allocated by one move of a fake entity, broadcast to the {@value LaserAllocationTest#PLAYERS} players */
+		private final long moveFakeEntityBudget;
+		/** Bytes allocated by sending the spawn packets of one laser to a player who already saw it */
+		private final long sendStartPacketsBudget;
+
+		private Subject(long visibilityPassBudget, long moveFakeEntityBudget, long sendStartPacketsBudget) {
+			this.visibilityPassBudget = visibilityPassBudget;
+			this.moveFakeEntityBudget = moveFakeEntityBudget;
+			this.sendStartPacketsBudget = sendStartPacketsBudget;
+		}
+
+		abstract Laser create(Location start, Location end) throws ReflectiveOperationException;
+
+		abstract Object createFakeEntity(Location location) throws ReflectiveOperationException;
+	}
+
+	@FunctionalInterface
+	private interface Action {
+		void run(int iteration) throws ReflectiveOperationException;
+	}
+
+	private StandInServer standIn;
+	private com.sun.management.ThreadMXBean threads;
+	private final List<Laser> lasers = new ArrayList<>();
+	private final List<Player> players = new ArrayList<>();
+
+	@BeforeEach
+	void setUp() throws ReflectiveOperationException {
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+				"the JVM does not measure allocations per thread");
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported(), "the JVM does not measure allocations per thread");
+		threads.setThreadAllocatedMemoryEnabled(true);
+		standIn = StandInServer.get();
+	}
+
+	@AfterEach
+	void tearDown() {
+		lasers.forEach(Laser::stop);
+		if (standIn != null)
+			standIn.reset();
+	}
+
+	private Location at(double x, double y, double z) {
+		return new Location(standIn.world, x, y, z);
+	}
+
+	/**
+	 * Starts lasers seen by all the players.
+	 */
+	private void startLasers(Subject subject) throws ReflectiveOperationException {
+		for (int i = 0; i < PLAYERS; i++) {
+			players.add(standIn.addPlayer(at(i, 64, 4)));
+		}
+		for (int i = 0; i < LASERS; i++) {
+			Laser laser = subject.create(at(i % 5, 64, i / 5), at(i % 5, 70, i / 5));
+			laser.start(standIn.plugin);
+			lasers.add(laser);
+		}
+		standIn.scheduler.tick(21);
+		drainPackets();
+	}
+
+	private void drainPackets() {
+		players.forEach(standIn::drainPackets);
+	}
+
+	/**
+	 * Runs an action many times, and gets the average bytes allocated by one run. Packets sent by a run are forgotten
+	 * before the next one, out of the measure, so that the lists recording them do not grow.
+	 */
+	private long measure(Action action) throws ReflectiveOperationException {
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			action.run(i);
+			drainPackets();
+		}
+		long allocated = 0;
+		for (int i = 0; i < MEASURED_RUNS; i++) {
+			long before = threads.getCurrentThreadAllocatedBytes();
+			action.run(i);
+			allocated += threads.getCurrentThreadAllocatedBytes() - before;
+			drainPackets();
+		}
+		return allocated / MEASURED_RUNS;
+	}
+
+	private void assertWithinBudget(Subject subject, String path, long budget, long allocated) {
+		LOGGER.info(() -> subject + " " + path + ": " + allocated + " bytes per call, budget " + budget);
+		assertTrue(allocated <= budget,
+				() -> subject + " " + path + " allocates " + allocated + " bytes per call, over its budget of " + budget);
+	}
+
+	@ParameterizedTest
+	@EnumSource
+	void visibilityPassStaysWithinBudget(Subject subject) throws ReflectiveOperationException {
+		startLasers(subject);
+		// runs the passes directly, without the snapshot and other tasks run by the scheduler every tick
+		Method tick = Laser.class.getDeclaredMethod("tick");
+		tick.setAccessible(true);
+		long allocated = measure(iteration -> {
+			for (Laser laser : lasers) {
+				tick.invoke(laser);
+			}
+		}) / LASERS;
+		assertWithinBudget(subject, "visibility pass", subject.visibilityPassBudget, allocated);
+	}
+
+	@ParameterizedTest
+	@EnumSource
+	void moveFakeEntityStaysWithinBudget(Subject subject) throws ReflectiveOperationException {
+		startLasers(subject);
+		Laser laser = lasers.get(0);
+		Object fakeEntity = subject.createFakeEntity(at(0, 64, 0));
+		Location[] locations = {at(0, 64, 0), at(1, 65, 1)};
+		long allocated = measure(iteration -> laser.moveFakeEntity(locations[iteration & 1], fakeEntity));
+		assertWithinBudget(subject, "moveFakeEntity", subject.moveFakeEntityBudget, allocated);
+	}
+
+	@ParameterizedTest
+	@EnumSource
+	void sendStartPacketsStaysWithinBudget(Subject subject) throws ReflectiveOperationException {
+		startLasers(subject);
+		Laser laser = lasers.get(0);
+		Player player = players.get(0);
+		long allocated = measure(iteration -> laser.sendStartPackets(player, true));
+		assertWithinBudget(subject, "sendStartPackets", subject.sendStartPacketsBudget, allocated);
+	}
+
+}
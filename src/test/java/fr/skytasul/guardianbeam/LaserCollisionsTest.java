@@ -0,0 +1,109 @@
+package fr.skytasul.guardianbeam;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import fr.skytasul.guardianbeam.Laser.GuardianLaser;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.util.BoundingBox;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+class LaserCollisionsTest {
+
+	private StandInServer standIn;
+	private final List<Laser> lasers = new ArrayList<>();
+
+	@BeforeEach
+	void setUp() throws ReflectiveOperationException {
+		standIn = StandInServer.get();
+	}
+
+	@AfterEach
+	void tearDown() {
+		lasers.forEach(Laser::stop);
+		standIn.reset();
+	}
+
+	private Laser startLaser(double x1, double y1, double z1, double x2, double y2, double z2)
+			throws ReflectiveOperationException {
+		Laser laser = new GuardianLaser(new Location(standIn.world, x1, y1, z1), new Location(standIn.world, x2, y2, z2),
+				-1, 16);
+		laser.start(standIn.plugin);
+		lasers.add(laser);
+		return laser;
+	}
+
+	private List<Laser> hitting(double x, double y, double z, double radius) {
+		return LaserCollisions.getLasersHitting(standIn.world,
+				new BoundingBox(x - radius, y - radius, z - radius, x + radius, y + radius, z + radius));
+	}
+
+	@Test
+	void diagonalBeamHitsBoxesOnItsPathOnly() throws ReflectiveOperationException {
+		Laser laser = startLaser(0, 64, 0, 10, 74, 10);
+		assertEquals(List.of(laser), hitting(5, 69, 5, 0.5));
+		assertEquals(List.of(laser), hitting(0, 64, 0, 0.5));
+		assertEquals(List.of(), hitting(5, 64, 5, 0.5));
+		assertEquals(List.of(), hitting(5, 69, 7, 0.5));
+	}
+
+	@Test
+	void segmentStopsAtItsEnds() throws ReflectiveOperationException {
+		startLaser(0, 64, 0, 10, 64, 0);
+		assertEquals(List.of(), hitting(-2, 64, 0, 1));
+		assertEquals(List.of(), hitting(12, 64, 0, 1));
+		assertEquals(1, hitting(10.5, 64, 0, 1).size());
+	}
+
+	@Test
+	void axisAlignedBeamIsHitWithinItsSlabOnly() throws ReflectiveOperationException {
+		// no direction along y and z: the inverse of the direction must stay finite
+		Laser laser = startLaser(0, 64.5, 0.5, 20, 64.5, 0.5);
+		assertEquals(List.of(laser), hitting(10, 64.5, 0.5, 0.25));
+		assertEquals(List.of(), hitting(10, 65.5, 0.5, 0.25));
+		assertEquals(List.of(), hitting(10, 64.5, 1.5, 0.25));
+	}
+
+	@Test
+	void longBeamsAndLargeBoxesAreQueried() throws ReflectiveOperationException {
+		// spans more chunk columns than a bucketed segment
+		Laser longLaser = startLaser(-500, 64, -500, 500, 64, 500);
+		Laser shortLaser = startLaser(2000, 64, 2000, 2005, 64, 2000);
+		assertEquals(List.of(longLaser), hitting(250, 64, 250, 1));
+		assertEquals(List.of(shortLaser), hitting(2002, 64, 2000, 1));
+
+		// covers more chunk columns than a bucketed query: every segment is tested
+		List<Laser> hits = LaserCollisions.getLasersHitting(standIn.world,
+				new BoundingBox(-1000, 0, -1000, 3000, 128, 3000));
+		assertEquals(2, hits.size());
+		assertTrue(hits.containsAll(List.of(longLaser, shortLaser)));
+	}
+
+	@Test
+	void indexFollowsMovedAndStoppedLasers() throws ReflectiveOperationException {
+		Laser laser = startLaser(0, 64, 0, 10, 64, 0);
+		laser.moveStart(new Location(standIn.world, 0, 80, 0));
+		laser.moveEnd(new Location(standIn.world, 10, 80, 0));
+		assertEquals(List.of(), hitting(5, 64, 0, 0.5));
+		assertEquals(List.of(laser), hitting(5, 80, 0, 0.5));
+
+		laser.stop();
+		lasers.remove(laser);
+		assertEquals(List.of(), hitting(5, 80, 0, 0.5));
+	}
+
+	@Test
+	void playersStandingInBeamsAreHit() throws ReflectiveOperationException {
+		Laser laser = startLaser(0, 65, 0, 10, 65, 0);
+		Player hit = standIn.addPlayer(new Location(standIn.world, 5, 64, 0));
+		standIn.addPlayer(new Location(standIn.world, 5, 64, 5));
+		Map<Player, List<Laser>> hits = LaserCollisions.getPlayersHit(standIn.world);
+		assertEquals(Map.of(hit, List.of(laser)), hits);
+	}
+
+}
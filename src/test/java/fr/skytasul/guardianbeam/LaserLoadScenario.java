@@ -0,0 +1,170 @@
+package fr.skytasul.guardianbeam;
+
+import fr.skytasul.guardianbeam.Laser.CrystalLaser;
+import fr.skytasul.guardianbeam.Laser.GuardianLaser;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Drives lasers on the {@link StandInServer} while players walk scripted paths, and measures what the lasers cost:
+ * packets and bytes received by the players and CPU time spent per tick.
+ * <p>
+ * The stand-in runs every task and creates every packet on the thread running the ticks, so the CPU time of this
+ * thread covers the capture of snapshots, the visibility passes and the packets. Packets are recorded, not encoded:
+ * bytes are the sizes the stand-in packets compute, before compression.
+ */
+final class LaserLoadScenario {
+
+	/** Blocks walked by each player per tick, a bit less than sprinting */
+	private static final double PLAYER_SPEED = 0.2;
+
+	private final int lasers;
+	private final int players;
+	private final int ticks;
+	private final int areaSize;
+	private final int laserDistance;
+	private final long seed;
+
+	/**
+	 * @param lasers amount of lasers, half guardians and half crystals, spread in the area
+	 * @param players amount of players walking circles in the area
+	 * @param ticks amount of measured ticks
+	 * @param areaSize size of the square area, in blocks
+	 * @param laserDistance visibility distance of the lasers
+	 * @param seed seed of the positions of lasers and players
+	 */
+	LaserLoadScenario(int lasers, int players, int ticks, int areaSize, int laserDistance, long seed) {
+		this.lasers = lasers;
+		this.players = players;
+		this.ticks = ticks;
+		this.areaSize = areaSize;
+		this.laserDistance = laserDistance;
+		this.seed = seed;
+	}
+
+	/**
+	 * Runs the scenario. Lasers are stopped and players leave once it is over.
+	 * @return measures of the run
+	 * @throws ReflectiveOperationException if a laser cannot be created
+	 */
+	@NotNull
+	Report run() throws ReflectiveOperationException {
+		StandInServer standIn = StandInServer.get();
+		Random random = new Random(seed);
+
+		List<Laser> started = new ArrayList<>(lasers);
+		for (int i = 0; i < lasers; i++) {
+			Location start = randomLocation(standIn, random);
+			Location end = start.clone().add(random.nextInt(16) - 8, random.nextInt(8), random.nextInt(16) - 8);
+			Laser laser = i % 2 == 0
+					? new GuardianLaser(start, end, -1, laserDistance)
+					: new CrystalLaser(start, end, -1, laserDistance);
+			laser.start(standIn.plugin);
+			started.add(laser);
+		}
+
+		List<Walker> walkers = new ArrayList<>(players);
+		for (int i = 0; i < players; i++) {
+			Location center = randomLocation(standIn, random);
+			double radius = 8 + random.nextDouble() * areaSize / 4;
+			walkers.add(new Walker(standIn.addPlayer(center), center, radius, random.nextDouble() * Math.PI * 2));
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+		long packets = 0;
+		long bytes = 0;
+		long totalNanos = 0;
+		long maxNanos = 0;
+		try {
+			for (int tick = 0; tick < ticks; tick++) {
+				for (Walker walker : walkers) {
+					walker.step(standIn);
+				}
+				long before = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+				standIn.scheduler.tick();
+				long elapsed = (cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime()) - before;
+				totalNanos += elapsed;
+				maxNanos = Math.max(maxNanos, elapsed);
+				for (Walker walker : walkers) {
+					List<StandInNms.Packet> received = standIn.drainPackets(walker.player);
+					packets += countPackets(received);
+					for (StandInNms.Packet packet : received) {
+						bytes += packet.getSize();
+					}
+				}
+			}
+		}finally {
+			for (Laser laser : started) {
+				if (laser.isStarted())
+					laser.stop();
+			}
+			standIn.reset();
+		}
+		return new Report(lasers, players, ticks, packets,
+				packets * 20d / ticks / Math.max(players, 1),
+				(double) bytes / ticks,
+				totalNanos / 1_000_000d / ticks,
+				maxNanos / 1_000_000d);
+	}
+
+	private Location randomLocation(StandInServer standIn, Random random) {
+		return new Location(standIn.world, random.nextDouble() * areaSize, 64, random.nextDouble() * areaSize);
+	}
+
+	/**
+	 * Counts bundled packets one by one, as the client handles them.
+	 */
+	private static long countPackets(List<StandInNms.Packet> packets) {
+		long count = 0;
+		for (StandInNms.Packet packet : packets) {
+			count += packet instanceof StandInNms.ClientboundBundlePacket bundle ? bundle.packets.size() : 1;
+		}
+		return count;
+	}
+
+	private static class Walker {
+		private final Player player;
+		private final Location center;
+		private final double radius;
+		private double angle;
+
+		private Walker(Player player, Location center, double radius, double angle) {
+			this.player = player;
+			this.center = center;
+			this.radius = radius;
+			this.angle = angle;
+		}
+
+		private void step(StandInServer standIn) {
+			angle += PLAYER_SPEED / radius;
+			standIn.movePlayer(player, center.clone().add(Math.cos(angle) * radius, 0, Math.sin(angle) * radius));
+		}
+	}
+
+	/**
+	 * Measures of a scenario run.
+	 * @param packetsPerPlayerPerSecond packets received per player and per second, bundles counting for their content
+	 * @param bytesPerTick bytes received by all players per tick, before compression
+	 * @param cpuMillisPerTick average CPU time of a tick, in milliseconds
+	 * @param maxCpuMillisPerTick CPU time of the longest tick, in milliseconds
+	 */
+	static record Report(int lasers, int players, int ticks, long packets, double packetsPerPlayerPerSecond,
+			double bytesPerTick, double cpuMillisPerTick, double maxCpuMillisPerTick) {
+
+		@Override
+		public String toString() {
+			return String.format("%d lasers, %d players, %d ticks: %d packets, %.1f packets/player/s, %.0f bytes/tick, "
+					+ "%.3f ms/tick (max %.3f ms)", lasers, players, ticks, packets, packetsPerPlayerPerSecond,
+					bytesPerTick, cpuMillisPerTick, maxCpuMillisPerTick);
+		}
+
+	}
+
+}
@@ -0,0 +1,44 @@
+package fr.skytasul.guardianbeam;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import java.util.logging.Logger;
+
+/**
+ * Runs a {@link LaserLoadScenario}. It is tagged <code>load</code>, which the default build excludes, and is run with
+ * <code>mvn test -Dgroups=load -Dtest.excludedGroups=none</code>. The scenario is configured with system properties,
+ * for instance <code>-Dguardianbeam.scenario.lasers=10000 -Dguardianbeam.scenario.players=500</code>.
+ */
+@Tag ("load")
+class LaserLoadScenarioTest {
+
+	private static final Logger LOGGER = Logger.getLogger(LaserLoadScenarioTest.class.getName());
+
+	private static int property(String name, int defaultValue) {
+		return Integer.getInteger("guardianbeam.scenario." + name, defaultValue);
+	}
+
+	@Test
+	void scenarioReportsPacketsBytesAndTickTime() throws ReflectiveOperationException {
+		LaserLoadScenario scenario = new LaserLoadScenario(
+				property("lasers", 500),
+				property("players", 20),
+				property("ticks", 200),
+				property("area", 512),
+				property("distance", 32),
+				42L);
+		LaserLoadScenario.Report report = scenario.run();
+		LOGGER.info(report::toString);
+
+		assertTrue(report.packets() > 0, "players walking among lasers must receive packets");
+		assertTrue(report.packetsPerPlayerPerSecond() > 0);
+		// every packet carries at least its ID and an entity ID
+		assertTrue(report.bytesPerTick() * report.ticks() >= 2 * report.packets());
+		assertTrue(report.cpuMillisPerTick() >= 0);
+		assertTrue(report.maxCpuMillisPerTick() >= report.cpuMillisPerTick());
+		assertEquals(0, StandInServer.get().getPlayers().size());
+	}
+
+}
@@ -0,0 +1,141 @@
+package fr.skytasul.guardianbeam;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import fr.skytasul.guardianbeam.Laser.CrystalLaser;
+import fr.skytasul.guardianbeam.Laser.GuardianLaser;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class LaserStandInTest {
+
+	/** Enough ticks for every laser to update its visibility at least once */
+	private static final int VISIBILITY_TICKS = 21;
+
+	private StandInServer standIn;
+
+	@BeforeEach
+	void setUp() throws ReflectiveOperationException {
+		standIn = StandInServer.get();
+	}
+
+	@AfterEach
+	void tearDown() {
+		standIn.reset();
+	}
+
+	private Location at(double x, double y, double z) {
+		return new Location(standIn.world, x, y, z);
+	}
+
+	private static long count(List<StandInNms.Packet> packets, Class<? extends StandInNms.Packet> type) {
+		return packets.stream().filter(type::isInstance).count();
+	}
+
+	@Test
+	void guardianLaserIsShownToPlayersInRange() throws ReflectiveOperationException {
+		Laser laser = new GuardianLaser(at(0, 64, 0), at(10, 64, 0), -1, 20);
+		Player near = standIn.addPlayer(at(5, 64, 5));
+		Player far = standIn.addPlayer(at(200, 64, 200));
+		laser.start(standIn.plugin);
+		standIn.scheduler.tick(VISIBILITY_TICKS);
+
+		List<StandInNms.Packet> packets = standIn.drainPackets(near);
+		assertEquals(2, count(packets, StandInNms.ClientboundAddEntityPacket.class)); // guardian and squid
+		assertEquals(1, count(packets, StandInNms.ClientboundSetPlayerTeamPacket.class));
+		assertEquals(List.of(), standIn.drainPackets(far));
+
+		laser.stop();
+		assertEquals(1, count(standIn.drainPackets(near), StandInNms.ClientboundRemoveEntitiesPacket.class));
+		assertFalse(laser.isStarted());
+	}
+
+	@Test
+	void laserIsDestroyedForPlayersLeavingItsRange() throws ReflectiveOperationException {
+		Laser laser = new CrystalLaser(at(0, 64, 0), at(0, 70, 0), -1, 20);
+		Player player = standIn.addPlayer(at(0, 64, 10));
+		laser.start(standIn.plugin);
+		standIn.scheduler.tick(VISIBILITY_TICKS);
+		assertEquals(1, count(standIn.drainPackets(player), StandInNms.ClientboundAddEntityPacket.class));
+
+		// still within the hysteresis margin
+		standIn.movePlayer(player, at(0, 64, 21));
+		standIn.scheduler.tick(VISIBILITY_TICKS);
+		assertEquals(List.of(), standIn.drainPackets(player));
+
+		standIn.movePlayer(player, at(0, 64, 40));
+		standIn.scheduler.tick(VISIBILITY_TICKS);
+		assertEquals(1, count(standIn.drainPackets(player), StandInNms.ClientboundRemoveEntitiesPacket.class));
+
+		laser.stop();
+		assertEquals(List.of(), standIn.drainPackets(player));
+	}
+
+	@Test
+	void laserEndsAfterItsDuration() throws ReflectiveOperationException {
+		AtomicBoolean ended = new AtomicBoolean();
+		Laser laser = new GuardianLaser(at(0, 64, 0), at(5, 64, 0), 10, 20).durationInTicks()
+				.executeEnd(() -> ended.set(true));
+		Player player = standIn.addPlayer(at(0, 64, 0));
+		laser.start(standIn.plugin);
+
+		standIn.scheduler.tick(9);
+		assertTrue(laser.isStarted());
+		standIn.scheduler.tick(1);
+		assertFalse(laser.isStarted());
+		assertTrue(ended.get());
+		assertEquals(1, count(standIn.drainPackets(player), StandInNms.ClientboundRemoveEntitiesPacket.class));
+	}
+
+	@Test
+	void smoothMoveSendsTheFinalPosition() throws ReflectiveOperationException {
+		Laser laser = new CrystalLaser(at(0, 64, 0), at(0, 70, 0), -1, 50);
+		Player player = standIn.addPlayer(at(0, 64, 0));
+		laser.start(standIn.plugin);
+		standIn.scheduler.tick(VISIBILITY_TICKS);
+		standIn.drainPackets(player);
+
+		AtomicBoolean arrived = new AtomicBoolean();
+		laser.moveStart(at(10, 64, 0), 10, () -> arrived.set(true));
+		standIn.scheduler.tick(12);
+
+		assertTrue(arrived.get());
+		List<StandInNms.Packet> packets = standIn.drainPackets(player);
+		StandInNms.ClientboundEntityPositionSyncPacket last = packets.stream()
+				.filter(StandInNms.ClientboundEntityPositionSyncPacket.class::isInstance)
+				.map(StandInNms.ClientboundEntityPositionSyncPacket.class::cast)
+				.reduce((first, second) -> second)
+				.orElseThrow();
+		assertEquals(10, last.x, 1e-9);
+		laser.stop();
+	}
+
+	@Test
+	void encodeOnceFallsBackToConnectionsWithoutChannel() throws ReflectiveOperationException {
+		Laser laser = new CrystalLaser(at(0, 64, 0), at(0, 70, 0), -1, 50);
+		Player first = standIn.addPlayer(at(0, 64, 0));
+		Player second = standIn.addPlayer(at(5, 64, 0));
+		laser.start(standIn.plugin);
+		standIn.scheduler.tick(VISIBILITY_TICKS);
+		standIn.drainPackets(first);
+		standIn.drainPackets(second);
+
+		Laser.setEncodeOnce(true);
+		try {
+			assertTrue(Laser.isEncodeOnce());
+			laser.moveStart(at(2, 64, 0));
+			// the stand-in connections have no channel: both viewers receive the packet through their connection
+			assertEquals(1, count(standIn.drainPackets(first), StandInNms.ClientboundEntityPositionSyncPacket.class));
+			assertEquals(1, count(standIn.drainPackets(second), StandInNms.ClientboundEntityPositionSyncPacket.class));
+		}finally {
+			Laser.setEncodeOnce(false);
+			laser.stop();
+		}
+	}
+
+}
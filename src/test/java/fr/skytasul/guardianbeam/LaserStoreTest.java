@@ -0,0 +1,126 @@
+package fr.skytasul.guardianbeam;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import fr.skytasul.guardianbeam.Laser.CrystalLaser;
+import fr.skytasul.guardianbeam.Laser.GuardianLaser;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+class LaserStoreTest {
+
+	@TempDir
+	Path directory;
+
+	private StandInServer standIn;
+	private final List<Laser> lasers = new ArrayList<>();
+
+	@BeforeEach
+	void setUp() throws ReflectiveOperationException {
+		standIn = StandInServer.get();
+	}
+
+	@AfterEach
+	void tearDown() {
+		for (Laser laser : lasers) {
+			if (laser.isStarted())
+				laser.stop();
+		}
+		standIn.reset();
+	}
+
+	private Location at(double x, double y, double z) {
+		return new Location(standIn.world, x, y, z);
+	}
+
+	private <T extends Laser> T start(T laser) {
+		laser.start(standIn.plugin);
+		lasers.add(laser);
+		return laser;
+	}
+
+	@Test
+	void restoredLasersAreWrittenBackIdentically() throws IOException, ReflectiveOperationException {
+		Path file = directory.resolve("lasers.dat");
+		LaserStore store = new LaserStore(file);
+		store.track(start(new GuardianLaser(at(1.5, 64.25, -3), at(10, 70, 4), 30, 24).durationInTicks()));
+		assertEquals(1, store.save());
+		byte[] saved = Files.readAllBytes(file);
+
+		LaserStore restored = new LaserStore(file);
+		assertEquals(1, restored.restore(standIn.plugin));
+		assertEquals(1, restored.getPendingCount());
+		restored.cancelRestore();
+
+		// pending lasers are written back as they were read
+		assertEquals(1, restored.save());
+		assertArrayEquals(saved, Files.readAllBytes(file));
+	}
+
+	@Test
+	void onlyRunningLasersAreSaved() throws IOException, ReflectiveOperationException {
+		Path file = directory.resolve("lasers.dat");
+		LaserStore store = new LaserStore(file);
+		Laser stopped = store.track(start(new CrystalLaser(at(0, 64, 0), at(0, 70, 0), -1, 16)));
+		store.track(start(new CrystalLaser(at(5, 64, 0), at(5, 70, 0), -1, 16)));
+		store.track(new GuardianLaser(at(0, 64, 5), at(5, 64, 5), -1, 16)); // never started
+		stopped.stop();
+		assertEquals(1, store.save());
+	}
+
+	@Test
+	void pendingLasersAreMaterializedWhenPlayersComeClose() throws IOException, ReflectiveOperationException {
+		Path file = directory.resolve("lasers.dat");
+		LaserStore store = new LaserStore(file);
+		store.track(start(new GuardianLaser(at(0, 64, 0), at(5, 64, 0), 200, 16).durationInTicks()));
+		store.track(start(new CrystalLaser(at(1000, 64, 1000), at(1000, 70, 1000), 200, 16).durationInTicks()));
+		assertEquals(2, store.save());
+		lasers.forEach(Laser::stop);
+
+		LaserStore restored = new LaserStore(file);
+		assertEquals(2, restored.restore(standIn.plugin));
+		Player player = standIn.addPlayer(at(3, 64, 3));
+		standIn.scheduler.tick(25);
+		assertEquals(1, restored.getPendingCount());
+
+		// the materialized laser is started and shown to the nearby player
+		standIn.scheduler.tick(20);
+		assertTrue(standIn.drainPackets(player).stream().anyMatch(StandInNms.ClientboundAddEntityPacket.class::isInstance));
+		restored.cancelRestore();
+		standIn.scheduler.tick(200); // lets the materialized laser end
+		assertEquals(1, restored.save());
+	}
+
+	@Test
+	void missingFileRestoresNothing() throws IOException {
+		LaserStore store = new LaserStore(directory.resolve("missing.dat"));
+		assertEquals(0, store.restore(standIn.plugin));
+		assertEquals(0, store.getPendingCount());
+	}
+
+	@Test
+	void invalidFilesAreRejected() throws IOException {
+		Path notLasers = directory.resolve("other.dat");
+		Files.write(notLasers, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+		assertThrows(IOException.class, () -> new LaserStore(notLasers).restore(standIn.plugin));
+
+		Path futureFormat = directory.resolve("future.dat");
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(futureFormat))) {
+			out.writeInt(0x47424C53);
+			out.writeByte(99);
+			out.writeInt(0);
+		}
+		assertThrows(IOException.class, () -> new LaserStore(futureFormat).restore(standIn.plugin));
+	}
+
+}
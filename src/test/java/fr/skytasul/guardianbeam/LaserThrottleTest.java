@@ -0,0 +1,85 @@
+package fr.skytasul.guardianbeam;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import fr.skytasul.guardianbeam.LaserThrottle.Level;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LaserThrottleTest {
+
+	private StandInServer standIn;
+
+	@BeforeEach
+	void setUp() throws ReflectiveOperationException {
+		standIn = StandInServer.get();
+		LaserThrottle.setThresholds(52, 70);
+	}
+
+	@AfterEach
+	void tearDown() {
+		standIn.reset();
+		LaserThrottle.setThresholds(52, 70);
+		// drops the level reached by the test
+		LaserThrottle.setEnabled(false);
+		LaserThrottle.setEnabled(true);
+	}
+
+	private void sample(double tickTime, int ticks) {
+		standIn.averageTickTime = tickTime;
+		for (int i = 0; i < ticks; i++) {
+			LaserThrottle.tick();
+		}
+	}
+
+	@Test
+	void levelRisesAsSoonAsTheTickTimeExceedsAThreshold() {
+		sample(50, 1);
+		assertEquals(Level.NORMAL, LaserThrottle.getLevel());
+		sample(60, 1);
+		assertEquals(Level.REDUCED, LaserThrottle.getLevel());
+		sample(80, 1);
+		assertEquals(Level.MINIMAL, LaserThrottle.getLevel());
+		assertEquals(80, LaserThrottle.getTickTime());
+	}
+
+	@Test
+	void levelRecoversOneStepAfterCalmTicks() {
+		sample(80, 1);
+		sample(50, LaserThrottle.RECOVERY_TICKS - 1);
+		assertEquals(Level.MINIMAL, LaserThrottle.getLevel());
+		sample(50, 1);
+		assertEquals(Level.REDUCED, LaserThrottle.getLevel());
+		sample(50, LaserThrottle.RECOVERY_TICKS);
+		assertEquals(Level.NORMAL, LaserThrottle.getLevel());
+	}
+
+	@Test
+	void spikeDuringRecoveryRestartsTheCountdown() {
+		sample(60, 1);
+		sample(50, LaserThrottle.RECOVERY_TICKS - 1);
+		sample(60, 1);
+		sample(50, LaserThrottle.RECOVERY_TICKS - 1);
+		assertEquals(Level.REDUCED, LaserThrottle.getLevel());
+		sample(50, 1);
+		assertEquals(Level.NORMAL, LaserThrottle.getLevel());
+	}
+
+	@Test
+	void disabledThrottleStaysNormal() {
+		LaserThrottle.setEnabled(false);
+		sample(200, 1);
+		assertEquals(Level.NORMAL, LaserThrottle.getLevel());
+		assertEquals(200, LaserThrottle.getTickTime());
+	}
+
+	@Test
+	void thresholdsMustBeOrdered() {
+		assertThrows(IllegalArgumentException.class, () -> LaserThrottle.setThresholds(80, 60));
+		LaserThrottle.setThresholds(60, 60);
+		sample(61, 1);
+		assertEquals(Level.MINIMAL, LaserThrottle.getLevel());
+	}
+
+}
@@ -0,0 +1,101 @@
+package fr.skytasul.guardianbeam;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import fr.skytasul.guardianbeam.Laser.GuardianLaser;
+import org.bukkit.Location;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.List;
+
+class LaserTimingWheelTest {
+
+	private StandInServer standIn;
+
+	@BeforeEach
+	void setUp() throws ReflectiveOperationException {
+		standIn = StandInServer.get();
+	}
+
+	@AfterEach
+	void tearDown() {
+		standIn.reset();
+	}
+
+	private Laser createLaser(int ticks) throws ReflectiveOperationException {
+		return new GuardianLaser(new Location(standIn.world, 0, 64, 0), new Location(standIn.world, 5, 64, 0), ticks, 16)
+				.durationInTicks();
+	}
+
+	@Test
+	void lasersEndAtTheirDeadlineWhateverTheTurnsOfTheWheel() throws ReflectiveOperationException {
+		// 512 slots: the second laser shares its slot with the first one, one turn later
+		Laser shortLaser = createLaser(10);
+		Laser longLaser = createLaser(10 + 512);
+		shortLaser.start(standIn.plugin);
+		longLaser.start(standIn.plugin);
+
+		standIn.scheduler.tick(10);
+		assertFalse(shortLaser.isStarted());
+		assertTrue(longLaser.isStarted());
+
+		standIn.scheduler.tick(511);
+		assertTrue(longLaser.isStarted());
+		standIn.scheduler.tick(1);
+		assertFalse(longLaser.isStarted());
+	}
+
+	@Test
+	void lasersExpiringDuringTheSameTickAreStoppedTogether() throws ReflectiveOperationException {
+		List<Laser> lasers = new ArrayList<>();
+		List<Laser> ended = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			Laser laser = createLaser(3);
+			laser.executeEnd(() -> ended.add(laser));
+			laser.start(standIn.plugin);
+			lasers.add(laser);
+		}
+		standIn.scheduler.tick(2);
+		assertEquals(List.of(), ended);
+		standIn.scheduler.tick(1);
+		assertEquals(lasers.size(), ended.size());
+		assertTrue(ended.containsAll(lasers));
+	}
+
+	@Test
+	void cancelReturnsTheRemainingTicks() throws ReflectiveOperationException {
+		Laser laser = createLaser(-1); // never started: only the wheel knows about it
+		LaserTimingWheel.schedule(standIn.plugin, laser, 50);
+		standIn.scheduler.tick(20);
+		assertEquals(30, LaserTimingWheel.cancel(laser));
+		assertEquals(-1, LaserTimingWheel.cancel(laser));
+	}
+
+	@Test
+	void schedulingAgainReplacesTheDeadline() throws ReflectiveOperationException {
+		Laser laser = createLaser(-1);
+		LaserTimingWheel.schedule(standIn.plugin, laser, 10);
+		LaserTimingWheel.schedule(standIn.plugin, laser, 40);
+		standIn.scheduler.tick(15);
+		assertEquals(25, LaserTimingWheel.cancel(laser));
+	}
+
+	@Test
+	void atLeastOneTickIsWaited() throws ReflectiveOperationException {
+		Laser laser = createLaser(-1);
+		LaserTimingWheel.schedule(standIn.plugin, laser, 0);
+		assertEquals(1, LaserTimingWheel.cancel(laser));
+	}
+
+	@Test
+	void stoppedLaserLeavesTheWheel() throws ReflectiveOperationException {
+		Laser laser = createLaser(100);
+		laser.start(standIn.plugin);
+		standIn.scheduler.tick(5);
+		laser.stop();
+		assertEquals(-1, LaserTimingWheel.cancel(laser));
+	}
+
+}
@@ -0,0 +1,114 @@
+package fr.skytasul.guardianbeam;
+
+import org.bukkit.Location;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs laser tasks on the thread calling {@link #tick()}, so that tests decide when time passes.
+ * <p>
+ * As with the Bukkit scheduler, a single thread owns every location, and tasks run at the earliest during the tick
+ * following the one they are scheduled in.
+ */
+final class LocalLaserScheduler implements LaserScheduler {
+
+	private final List<LocalTask> tasks = new ArrayList<>();
+	private long currentTick;
+
+	@Override
+	public @NotNull Task runTimer(@NotNull Plugin plugin, @Nullable Location location, @NotNull Runnable task,
+			long delay, long period, boolean async) {
+		return schedule(task, delay, period);
+	}
+
+	@Override
+	public void run(@NotNull Plugin plugin, @Nullable Location location, @NotNull Runnable task) {
+		schedule(task, 1L, 0L);
+	}
+
+	@Override
+	public boolean isOwnedByCurrentThread(@NotNull Location location) {
+		return true;
+	}
+
+	private synchronized LocalTask schedule(Runnable runnable, long delay, long period) {
+		LocalTask task = new LocalTask(runnable, currentTick + Math.max(delay, 1L), period);
+		tasks.add(task);
+		return task;
+	}
+
+	/**
+	 * Runs the tasks due during the next tick, in the order they were scheduled.
+	 * <p>
+	 * Tasks scheduled while the tick runs wait for the next one.
+	 */
+	void tick() {
+		List<LocalTask> due = new ArrayList<>();
+		synchronized (this) {
+			currentTick++;
+			tasks.removeIf(LocalTask::isCancelled);
+			for (LocalTask task : tasks) {
+				if (task.nextRun <= currentTick)
+					due.add(task);
+			}
+		}
+		for (LocalTask task : due) {
+			if (task.isCancelled())
+				continue; // cancelled by a task which ran before during this tick
+			if (task.period <= 0)
+				task.cancel();
+			else
+				task.nextRun = currentTick + task.period;
+			task.runnable.run();
+		}
+	}
+
+	/**
+	 * Runs several ticks in a row.
+	 * @param ticks amount of ticks to run
+	 */
+	void tick(int ticks) {
+		for (int i = 0; i < ticks; i++) {
+			tick();
+		}
+	}
+
+	synchronized long getCurrentTick() {
+		return currentTick;
+	}
+
+	/**
+	 * Gets the amount of tasks which are neither cancelled nor done.
+	 */
+	synchronized int getActiveTasks() {
+		return (int) tasks.stream().filter(task -> !task.isCancelled()).count();
+	}
+
+	private static class LocalTask implements Task {
+		private final Runnable runnable;
+		private final long period;
+		private long nextRun;
+		private volatile boolean cancelled;
+
+		private LocalTask(Runnable runnable, long nextRun, long period) {
+			this.runnable = runnable;
+			this.nextRun = nextRun;
+			this.period = period;
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+	}
+
+}
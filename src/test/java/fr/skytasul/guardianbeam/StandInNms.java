@@ -0,0 +1,357 @@
+package fr.skytasul.guardianbeam;
+
+import com.google.common.collect.ImmutableList;
+import io.netty.channel.Channel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Minimal stand-ins for the Minecraft server classes read by {@link Laser.Packets}, with the Mojang names and members
+ * of 1.21.4. They are handed to the lasers by the {@link StandInReflectionAccessor}.
+ * <p>
+ * Packets only keep what tests need to check, and connections record the packets sent to them instead of sending them.
+ * Packets are not encoded, but they compute the size they would have on the wire in 1.21.4, without compression.
+ */
+public final class StandInNms {
+
+	private StandInNms() {}
+
+	public static class Level {}
+
+	public static class EntityType {
+		public static final EntityType SQUID = new EntityType();
+		public static final EntityType GUARDIAN = new EntityType();
+	}
+
+	public static class BlockPos {
+		public final int x, y, z;
+
+		public BlockPos(int x, int y, int z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+	}
+
+	public static class EntityDataAccessor {
+		public final int id;
+
+		public EntityDataAccessor(int id) {
+			this.id = id;
+		}
+	}
+
+	public static record DataValue(int id, Object value) {}
+
+	public static class SynchedEntityData {
+		private final Map<EntityDataAccessor, Object> values = new LinkedHashMap<>();
+		private final Set<EntityDataAccessor> dirty = new LinkedHashSet<>();
+
+		public synchronized void set(EntityDataAccessor accessor, Object value, boolean force) {
+			values.put(accessor, value);
+			dirty.add(accessor);
+		}
+
+		public synchronized List<DataValue> packDirty() {
+			List<DataValue> packed = new ArrayList<>(dirty.size());
+			for (EntityDataAccessor accessor : dirty) {
+				packed.add(new DataValue(accessor.id, values.get(accessor)));
+			}
+			dirty.clear();
+			return packed;
+		}
+	}
+
+	public static class Entity {
+		public static final EntityDataAccessor DATA_SHARED_FLAGS_ID = new EntityDataAccessor(0);
+
+		private final SynchedEntityData data = new SynchedEntityData();
+		public BlockPos blockPosition = new BlockPos(0, 0, 0);
+		public ImmutableList<Entity> passengers = ImmutableList.of();
+		public int id;
+		public UUID uuid;
+		public double x, y, z;
+
+		public SynchedEntityData getEntityData() {
+			return data;
+		}
+
+		public void absMoveTo(double x, double y, double z, float yaw, float pitch) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			blockPosition = new BlockPos((int) Math.floor(x), (int) Math.floor(y), (int) Math.floor(z));
+		}
+
+		public void setUUID(UUID uuid) {
+			this.uuid = uuid;
+		}
+
+		public void setId(int id) {
+			this.id = id;
+		}
+	}
+
+	public static class LivingEntity extends Entity {}
+
+	public static class Squid extends LivingEntity {
+		public Squid(EntityType type, Level level) {}
+	}
+
+	public static class Guardian extends LivingEntity {
+		public static final EntityDataAccessor DATA_ID_MOVING = new EntityDataAccessor(16);
+		public static final EntityDataAccessor DATA_ID_ATTACK_TARGET = new EntityDataAccessor(17);
+
+		public Guardian(EntityType type, Level level) {}
+	}
+
+	public static class EndCrystal extends Entity {
+		public static final EntityDataAccessor DATA_BEAM_TARGET = new EntityDataAccessor(8);
+		public static final EntityDataAccessor DATA_SHOW_BOTTOM = new EntityDataAccessor(9);
+
+		public EndCrystal(Level level, double x, double y, double z) {
+			absMoveTo(x, y, z, 0, 0);
+		}
+	}
+
+	public static class Scoreboard {}
+
+	public static class Team {
+		public enum CollisionRule {
+			ALWAYS, NEVER;
+		}
+	}
+
+	public static class PlayerTeam {
+		public final String name;
+		public final Set<String> players = new HashSet<>();
+		public Team.CollisionRule collisionRule = Team.CollisionRule.ALWAYS;
+
+		public PlayerTeam(Scoreboard scoreboard, String name) {
+			this.name = name;
+		}
+
+		public void setCollisionRule(Team.CollisionRule rule) {
+			collisionRule = rule;
+		}
+
+		public Collection<String> getPlayers() {
+			return players;
+		}
+	}
+
+	public interface Packet {
+
+		/**
+		 * Gets the size of this packet on the wire: its ID and content, without the length prefix and compression.
+		 */
+		int getSize();
+
+	}
+
+	static int varIntSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	static int stringSize(String value) {
+		int bytes = value.getBytes(StandardCharsets.UTF_8).length;
+		return varIntSize(bytes) + bytes;
+	}
+
+	/** Size of an entity data value: its index, its serializer ID and its content */
+	static int dataValueSize(Object value) {
+		if (value instanceof DataValue data)
+			value = data.value();
+		int content;
+		if (value instanceof Integer integer)
+			content = varIntSize(integer);
+		else if (value instanceof Optional<?> optional)
+			content = optional.isPresent() ? 1 + Long.BYTES : 1;
+		else
+			content = 1; // bytes and booleans
+		return 2 + content;
+	}
+
+	public static class ClientboundAddEntityPacket implements Packet {
+		public final int entityId;
+		public final double x, y, z;
+
+		public ClientboundAddEntityPacket(Entity entity, int data, BlockPos position) {
+			this.entityId = entity.id;
+			this.x = entity.x;
+			this.y = entity.y;
+			this.z = entity.z;
+		}
+
+		@Override
+		public int getSize() {
+			// ID, UUID, type, position, rotations, data and velocity
+			return 1 + varIntSize(entityId) + 16 + 1 + 3 * Double.BYTES + 3 + 1 + 3 * Short.BYTES;
+		}
+	}
+
+	public static class ClientboundRemoveEntitiesPacket implements Packet {
+		public final int[] entityIds;
+
+		public ClientboundRemoveEntitiesPacket(int[] entityIds) {
+			this.entityIds = entityIds.clone();
+		}
+
+		@Override
+		public int getSize() {
+			int size = 1 + varIntSize(entityIds.length);
+			for (int entityId : entityIds) {
+				size += varIntSize(entityId);
+			}
+			return size;
+		}
+	}
+
+	public static class ClientboundSetEntityDataPacket implements Packet {
+		public final int entityId;
+		public final List<?> values;
+
+		public ClientboundSetEntityDataPacket(int entityId, List<?> values) {
+			this.entityId = entityId;
+			this.values = values;
+		}
+
+		@Override
+		public int getSize() {
+			int size = 1 + varIntSize(entityId) + 1; // ends with a 0xFF index
+			for (Object value : values) {
+				size += dataValueSize(value);
+			}
+			return size;
+		}
+	}
+
+	public static class ClientboundEntityPositionSyncPacket implements Packet {
+		public final int entityId;
+		public final double x, y, z;
+
+		private ClientboundEntityPositionSyncPacket(Entity entity) {
+			this.entityId = entity.id;
+			this.x = entity.x;
+			this.y = entity.y;
+			this.z = entity.z;
+		}
+
+		public static ClientboundEntityPositionSyncPacket of(Entity entity) {
+			return new ClientboundEntityPositionSyncPacket(entity);
+		}
+
+		@Override
+		public int getSize() {
+			// position, velocity, rotations and on ground flag
+			return 1 + varIntSize(entityId) + 6 * Double.BYTES + 2 * Float.BYTES + 1;
+		}
+	}
+
+	public static class ClientboundSetPassengersPacket implements Packet {
+		public final int vehicleId;
+		public final int[] passengerIds;
+
+		public ClientboundSetPassengersPacket(Entity vehicle) {
+			this.vehicleId = vehicle.id;
+			this.passengerIds = vehicle.passengers.stream().mapToInt(passenger -> passenger.id).toArray();
+		}
+
+		@Override
+		public int getSize() {
+			int size = 1 + varIntSize(vehicleId) + varIntSize(passengerIds.length);
+			for (int passengerId : passengerIds) {
+				size += varIntSize(passengerId);
+			}
+			return size;
+		}
+	}
+
+	public static class ClientboundSetPlayerTeamPacket implements Packet {
+		public final String name;
+		public final Set<String> players;
+
+		private ClientboundSetPlayerTeamPacket(PlayerTeam team) {
+			this.name = team.name;
+			this.players = Set.copyOf(team.players);
+		}
+
+		public static ClientboundSetPlayerTeamPacket createAddOrModifyPacket(PlayerTeam team, boolean create) {
+			return new ClientboundSetPlayerTeamPacket(team);
+		}
+
+		@Override
+		public int getSize() {
+			// method, then parameters: empty display name, flags, visibility, collision rule, color, empty prefix and
+			// suffix
+			int size = 1 + stringSize(name) + 1 + 2 + 1 + stringSize("always") + stringSize("never") + 1 + 2 + 2;
+			size += varIntSize(players.size());
+			for (String player : players) {
+				size += stringSize(player);
+			}
+			return size;
+		}
+	}
+
+	public static class ClientboundBundlePacket implements Packet {
+		public final List<Packet> packets = new ArrayList<>();
+
+		public ClientboundBundlePacket(Iterable<Packet> packets) {
+			packets.forEach(this.packets::add);
+		}
+
+		@Override
+		public int getSize() {
+			// the content is surrounded by two delimiter packets
+			int size = 2;
+			for (Packet packet : packets) {
+				size += packet.getSize();
+			}
+			return size;
+		}
+	}
+
+	public static class Connection {
+		/** No channel: broadcast packets then go through {@link ServerCommonPacketListenerImpl#send(Packet)} */
+		public Channel channel;
+		private final Object packetListener;
+
+		public Connection(Object packetListener) {
+			this.packetListener = packetListener;
+		}
+
+		public Object getPacketListener() {
+			return packetListener;
+		}
+	}
+
+	public static class ServerCommonPacketListenerImpl {
+		public final Connection connection = new Connection(this);
+		private final List<Packet> sent = Collections.synchronizedList(new ArrayList<>());
+
+		public void send(Packet packet) {
+			sent.add(packet);
+		}
+
+		/**
+		 * Gets and forgets the packets sent so far.
+		 */
+		public List<Packet> drain() {
+			synchronized (sent) {
+				List<Packet> packets = new ArrayList<>(sent);
+				sent.clear();
+				return packets;
+			}
+		}
+	}
+
+	public static class ServerPlayer extends Entity {
+		public final ServerCommonPacketListenerImpl connection = new ServerCommonPacketListenerImpl();
+	}
+
+}
@@ -0,0 +1,26 @@
+package fr.skytasul.guardianbeam;
+
+import fr.skytasul.reflection.ReflectionAccessor;
+import fr.skytasul.reflection.TransparentReflectionAccessor;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Gives the {@link StandInNms} classes to {@link Laser.Packets#loadReflection} in place of the Minecraft server classes
+ * of the same simple name, so that lasers record their packets instead of sending them.
+ */
+final class StandInReflectionAccessor implements ReflectionAccessor {
+
+	private static final String MINECRAFT_PACKAGE = "net.minecraft.";
+
+	private final ReflectionAccessor delegate = new TransparentReflectionAccessor();
+
+	@Override
+	public @NotNull ClassAccessor getClass(@NotNull String name) throws ClassNotFoundException {
+		if (!name.startsWith(MINECRAFT_PACKAGE))
+			return delegate.getClass(name);
+		// e.g. net.minecraft.world.scores.Team$CollisionRule -> StandInNms$Team$CollisionRule
+		String simpleName = name.substring(name.lastIndexOf('.') + 1);
+		return delegate.getClass(StandInNms.class.getName() + "$" + simpleName);
+	}
+
+}
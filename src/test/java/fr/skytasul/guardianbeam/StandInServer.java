@@ -0,0 +1,315 @@
+package fr.skytasul.guardianbeam;
+
+import fr.skytasul.guardianbeam.craft.CraftWorld;
+import fr.skytasul.guardianbeam.craft.entity.CraftPlayer;
+import fr.skytasul.reflection.Version;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.util.BoundingBox;
+import org.jetbrains.annotations.NotNull;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Headless stand-in for a Bukkit server with a single world, on which lasers run without Minecraft.
+ * <p>
+ * The server, its world and its players are proxies implementing only what lasers call. Lasers are run by a
+ * {@link LocalLaserScheduler} and their packets are created and sent on the calling thread, to {@link StandInNms}
+ * connections which record them.
+ * <p>
+ * Bukkit only accepts one server per JVM, hence the stand-in is installed once with {@link #get()} and shared between
+ * tests, which {@link #reset()} it.
+ */
+final class StandInServer {
+
+	static final Version VERSION = Version.parse("1.21.4");
+
+	/** Lasers update their visibility every second */
+	private static final int RESET_TICKS = 40;
+
+	private static StandInServer instance;
+
+	private final Logger logger = Logger.getLogger("StandInServer");
+	private final AtomicInteger lastEntityId = new AtomicInteger();
+	private final List<Player> players = new CopyOnWriteArrayList<>();
+	private final Map<Player, StandInPlayer> playerStates = new IdentityHashMap<>();
+
+	/** Tick time reported to the {@link LaserThrottle}, in milliseconds */
+	volatile double averageTickTime = 50;
+
+	final LocalLaserScheduler scheduler = new LocalLaserScheduler();
+	final Server server;
+	final World world;
+	final Plugin plugin;
+
+	private StandInServer() {
+		server = proxy(Server.class, new Class<?>[] {AverageTickTime.class}, this::invokeServer);
+		world = proxy(World.class, new Class<?>[] {CraftWorld.class}, new StandInWorld());
+		plugin = proxy(Plugin.class, new Class<?>[0], this::invokePlugin);
+	}
+
+	/**
+	 * Gets the stand-in, installing it as the Bukkit server and as the server of lasers the first time.
+	 * @return the installed stand-in
+	 */
+	static synchronized @NotNull StandInServer get() throws ReflectiveOperationException {
+		if (instance == null) {
+			StandInServer standIn = new StandInServer();
+			standIn.install();
+			instance = standIn;
+		}
+		return instance;
+	}
+
+	private void install() throws ReflectiveOperationException {
+		Bukkit.setServer(server);
+		Laser.setScheduler(scheduler);
+		Laser.setPacketExecutor(Runnable::run);
+		Laser.setSpawnBudget(0);
+		// set by the initialization of lasers on real servers, which reads the CraftBukkit package of the server
+		setPacketsField("cpack", CraftWorld.class.getPackageName() + ".");
+		Laser.Packets.loadReflection(new StandInReflectionAccessor(), VERSION);
+		setPacketsField("version", VERSION);
+		setPacketsField("hasInitialized", true);
+		setPacketsField("isEnabled", true);
+	}
+
+	private static void setPacketsField(String name, Object value) throws ReflectiveOperationException {
+		Field field = Laser.Packets.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(null, value);
+	}
+
+	/**
+	 * Makes all players leave and runs enough ticks for the visibility of every laser to be updated, so that the lasers
+	 * left by a test release their viewers. Lasers must still be stopped by the test which started them.
+	 */
+	void reset() {
+		for (Player player : players) {
+			removePlayer(player);
+		}
+		averageTickTime = 50;
+		scheduler.tick(RESET_TICKS);
+	}
+
+	/**
+	 * Makes a player join the server.
+	 * @param location initial location of the player, in the world of the stand-in
+	 * @return the joined player
+	 */
+	@NotNull
+	Player addPlayer(@NotNull Location location) {
+		int id = lastEntityId.incrementAndGet();
+		StandInPlayer state = new StandInPlayer(id, location);
+		Player player = proxy(Player.class, new Class<?>[] {CraftPlayer.class}, state);
+		synchronized (playerStates) {
+			playerStates.put(player, state);
+		}
+		players.add(player);
+		return player;
+	}
+
+	void removePlayer(@NotNull Player player) {
+		players.remove(player);
+		getState(player).online = false;
+	}
+
+	/**
+	 * Moves a player, as if the client sent a new position.
+	 */
+	void movePlayer(@NotNull Player player, @NotNull Location location) {
+		getState(player).location = location.clone();
+	}
+
+	@NotNull
+	List<Player> getPlayers() {
+		return Collections.unmodifiableList(players);
+	}
+
+	/**
+	 * Gets and forgets the packets sent to a player since the last call. Bundles are left as they are.
+	 * @param player player who received the packets
+	 * @return packets sent to the player, in order
+	 */
+	@NotNull
+	List<StandInNms.Packet> drainPackets(@NotNull Player player) {
+		return getState(player).handle.connection.drain();
+	}
+
+	private StandInPlayer getState(Player player) {
+		synchronized (playerStates) {
+			return Objects.requireNonNull(playerStates.get(player), "Not a player of the stand-in");
+		}
+	}
+
+	private Object invokeServer(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+			case "getWorlds":
+				return List.of(world);
+			case "getWorld":
+				return args[0].equals(world.getUID()) || args[0].equals(world.getName()) ? world : null;
+			case "getOnlinePlayers":
+				return getPlayers();
+			case "getEntity":
+				return players.stream().filter(player -> player.getUniqueId().equals(args[0])).findAny().orElse(null);
+			case "isPrimaryThread":
+				return true;
+			case "getAverageTickTime":
+				return averageTickTime;
+			case "getBukkitVersion":
+				return VERSION.major() + "." + VERSION.minor() + "." + VERSION.patch() + "-R0.1-SNAPSHOT";
+			case "getName":
+			case "getVersion":
+				return "StandIn";
+			case "getLogger":
+				return logger;
+			case "getPluginManager":
+				// lasers only register listeners, which the stand-in never calls
+				return proxy(PluginManager.class, new Class<?>[0], (pluginManager, pmMethod, pmArgs) -> null);
+			default:
+				return invokeObject(proxy, method, args);
+		}
+	}
+
+	private Object invokePlugin(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+			case "getName":
+				return "StandInPlugin";
+			case "getServer":
+				return server;
+			case "getLogger":
+				return logger;
+			case "isEnabled":
+				return true;
+			default:
+				return invokeObject(proxy, method, args);
+		}
+	}
+
+	private static Object invokeObject(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "StandIn" + proxy.getClass().getInterfaces()[0].getSimpleName() + "@"
+						+ Integer.toHexString(System.identityHashCode(proxy));
+			default:
+				throw new UnsupportedOperationException("The stand-in server does not implement " + method);
+		}
+	}
+
+	private static <T> T proxy(Class<T> type, Class<?>[] extraTypes, InvocationHandler handler) {
+		Class<?>[] types = new Class<?>[extraTypes.length + 1];
+		types[0] = type;
+		System.arraycopy(extraTypes, 0, types, 1, extraTypes.length);
+		return type.cast(Proxy.newProxyInstance(StandInServer.class.getClassLoader(), types, handler));
+	}
+
+	/**
+	 * Tick time measured by Paper servers, which the {@link LaserThrottle} reads instead of timing ticks itself.
+	 */
+	public interface AverageTickTime {
+
+		double getAverageTickTime();
+
+	}
+
+	private class StandInWorld implements InvocationHandler {
+		private final UUID uuid = UUID.randomUUID();
+		private final StandInNms.Level handle = new StandInNms.Level();
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()) {
+				case "getUID":
+					return uuid;
+				case "getName":
+					return "world";
+				case "getHandle":
+					return handle;
+				case "getPlayers":
+					return new ArrayList<>(players);
+				case "getEntities":
+					return new ArrayList<>(players);
+				case "isChunkLoaded":
+					return true;
+				default:
+					return invokeObject(proxy, method, args);
+			}
+		}
+	}
+
+	private class StandInPlayer implements InvocationHandler {
+		private final int id;
+		private final UUID uuid = UUID.randomUUID();
+		private final StandInNms.ServerPlayer handle = new StandInNms.ServerPlayer();
+		private volatile Location location;
+		private volatile boolean online = true;
+
+		private StandInPlayer(int id, Location location) {
+			this.id = id;
+			this.location = location.clone();
+			handle.setId(id);
+			handle.setUUID(uuid);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()) {
+				case "getLocation":
+					if (args == null)
+						return location.clone();
+					Location target = (Location) args[0];
+					Location current = location;
+					target.setWorld(current.getWorld());
+					target.setX(current.getX());
+					target.setY(current.getY());
+					target.setZ(current.getZ());
+					target.setYaw(current.getYaw());
+					target.setPitch(current.getPitch());
+					return target;
+				case "getEyeLocation":
+					return location.clone().add(0, 1.62, 0);
+				case "getWorld":
+					return location.getWorld();
+				case "getUniqueId":
+					return uuid;
+				case "getEntityId":
+					return id;
+				case "getName":
+					return "Player" + id;
+				case "getHandle":
+					return handle;
+				case "isOnline":
+				case "isValid":
+					return online;
+				case "isDead":
+					return false;
+				case "getHeight":
+					return 1.8;
+				case "getBoundingBox":
+					Location feet = location;
+					return new BoundingBox(feet.getX() - 0.3, feet.getY(), feet.getZ() - 0.3, feet.getX() + 0.3,
+							feet.getY() + 1.8, feet.getZ() + 0.3);
+				case "getPassengers":
+					return List.of();
+				default:
+					return invokeObject(proxy, method, args);
+			}
+		}
+	}
+
+}
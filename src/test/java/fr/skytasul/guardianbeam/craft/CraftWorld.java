@@ -0,0 +1,12 @@
+package fr.skytasul.guardianbeam.craft;
+
+import fr.skytasul.guardianbeam.StandInNms;
+
+/**
+ * Stand-in for the CraftBukkit world, implemented by the worlds of the stand-in server.
+ */
+public interface CraftWorld {
+
+	StandInNms.Level getHandle();
+
+}
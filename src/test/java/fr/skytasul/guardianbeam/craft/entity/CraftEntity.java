@@ -0,0 +1,12 @@
+package fr.skytasul.guardianbeam.craft.entity;
+
+import fr.skytasul.guardianbeam.StandInNms;
+
+/**
+ * Stand-in for the CraftBukkit entity, implemented by the entities of the stand-in server.
+ */
+public interface CraftEntity {
+
+	StandInNms.Entity getHandle();
+
+}
@@ -0,0 +1,12 @@
+package fr.skytasul.guardianbeam.craft.entity;
+
+import fr.skytasul.guardianbeam.StandInNms;
+
+/**
+ * Stand-in for the CraftBukkit player, implemented by the players of the stand-in server.
+ */
+public interface CraftPlayer {
+
+	StandInNms.ServerPlayer getHandle();
+
+}